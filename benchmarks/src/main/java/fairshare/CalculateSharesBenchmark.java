@@ -0,0 +1,68 @@
+package fairshare;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Splitting one expense into cents for every split type
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CalculateSharesBenchmark {
+    @Param({"equal", "exact", "percentage", "shares"})
+    String splitType;
+
+    @Param({"4", "50"})
+    int participants;
+
+    private final double total = 1000.00;
+    private List<String> names;
+    private Map<String, Double> details;
+
+    @Setup
+    public void setup() {
+        names = new ArrayList<>();
+        details = new HashMap<>();
+        for (int i = 0; i < participants; i++) {
+            names.add("person" + i);
+        }
+        // Uneven weights so that the largest-remainder step has work to do
+        double weightSum = 0;
+        for (int i = 0; i < participants; i++) {
+            weightSum += i + 1;
+        }
+        long assignedCents = 0;
+        for (int i = 0; i < participants; i++) {
+            double weight = i + 1;
+            switch (splitType) {
+                case "exact":
+                    long cents = i == participants - 1
+                            ? Math.round(total * 100) - assignedCents
+                            : (long) Math.floor(total * 100 * weight / weightSum);
+                    assignedCents += cents;
+                    details.put(names.get(i), cents / 100.0);
+                    break;
+                case "percentage":
+                    details.put(names.get(i), 100 * weight / weightSum);
+                    break;
+                case "shares":
+                    details.put(names.get(i), weight);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    public App.Shares calculateShares() {
+        return App.AddExpenseHandler.calculateShares(names, splitType, details, total);
+    }
+}
@@ -0,0 +1,162 @@
+package fairshare;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Parsing an /addExpense body with the streaming reader, against the original line-reading, indexOf-based parser
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseExpenseBenchmark {
+    @Param({"equal", "percentage"})
+    String splitType;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        String json = "equal".equals(splitType)
+                ? "{\"payer\":\"Alice\",\"total\":120.50,\"participants\":[\"Alice\",\"Bob\",\"Carol\",\"Dave\"],\"splitType\":\"equal\"}"
+                : "{\"payer\":\"Alice\",\"total\":120.50,\"participants\":[\"Alice\",\"Bob\",\"Carol\",\"Dave\"],"
+                + "\"splitType\":\"percentage\",\"splitDetails\":{\"Alice\":40,\"Bob\":30,\"Carol\":20,\"Dave\":10}}";
+        body = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public App.Expense parseAddExpenseJson() throws IOException {
+        return App.AddExpenseHandler.parseExpense(new JsonReader(new ByteArrayInputStream(body)));
+    }
+
+    // The handler as it was: read the body line by line into a string, then pick fields out with indexOf
+    @Benchmark
+    public Map<String, Object> baselineParseAddExpenseJson() throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = br.readLine()) != null) {
+            sb.append(line);
+        }
+        return baselineParse(sb.toString());
+    }
+
+    // Copied unchanged from the original AddExpenseHandler.parseAddExpenseJson
+    private static Map<String, Object> baselineParse(String json) {
+        Map<String, Object> map = new HashMap<>();
+
+        // Parse payer more robustly
+        int payerStartIdx = json.indexOf("\"payer\":");
+        if (payerStartIdx != -1) {
+            int afterColon = json.indexOf(":", payerStartIdx) + 1;
+            int quoteStart = json.indexOf("\"", afterColon);
+            if (quoteStart != -1) {
+                int quoteEnd = json.indexOf("\"", quoteStart + 1);
+                if (quoteEnd != -1) {
+                    String payer = json.substring(quoteStart + 1, quoteEnd).trim();
+                    map.put("payer", payer);
+                }
+            }
+        }
+
+        // Parse total more robustly
+        int totalStartIdx = json.indexOf("\"total\":");
+        if (totalStartIdx != -1) {
+            int afterColon = json.indexOf(":", totalStartIdx) + 1;
+            int end = json.indexOf(",", afterColon);
+            if (end == -1) end = json.indexOf("}", afterColon);
+            if (end != -1) {
+                String totalStr = json.substring(afterColon, end).trim();
+                try {
+                    double total = Double.parseDouble(totalStr);
+                    map.put("total", total);
+                } catch (NumberFormatException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        // Parse participants more robustly
+        int partStartIdx = json.indexOf("\"participants\":[");
+        if (partStartIdx != -1) {
+            int arrayStart = json.indexOf("[", partStartIdx) + 1;
+            int arrayEnd = json.indexOf("]", arrayStart);
+            if (arrayEnd != -1) {
+                String partStr = json.substring(arrayStart, arrayEnd).trim();
+                List<String> participants = new ArrayList<>();
+                if (!partStr.isEmpty()) {
+                    String[] partParts = partStr.split(",");
+                    for (String part : partParts) {
+                        String p = part.trim();
+                        if (p.startsWith("\"") && p.endsWith("\"")) {
+                            p = p.substring(1, p.length() - 1).trim();
+                        }
+                        if (!p.isEmpty()) {
+                            participants.add(p);
+                        }
+                    }
+                }
+                map.put("participants", participants);
+            }
+        }
+
+        // Parse splitType more robustly
+        int typeStartIdx = json.indexOf("\"splitType\":");
+        if (typeStartIdx != -1) {
+            int afterColon = json.indexOf(":", typeStartIdx) + 1;
+            int quoteStart = json.indexOf("\"", afterColon);
+            if (quoteStart != -1) {
+                int quoteEnd = json.indexOf("\"", quoteStart + 1);
+                if (quoteEnd != -1) {
+                    String splitType = json.substring(quoteStart + 1, quoteEnd).trim();
+                    map.put("splitType", splitType);
+                }
+            }
+        }
+
+        // Parse splitDetails more robustly
+        Map<String, Double> splitDetails = new HashMap<>();
+        int detailsStartIdx = json.indexOf("\"splitDetails\":");
+        if (detailsStartIdx != -1) {
+            int afterColon = json.indexOf(":", detailsStartIdx) + 1;
+            int objStart = json.indexOf("{", afterColon);
+            if (objStart != -1) {
+                int objEnd = json.indexOf("}", objStart + 1);
+                if (objEnd != -1) {
+                    String detailsStr = json.substring(objStart + 1, objEnd).trim();
+                    if (!detailsStr.isEmpty()) {
+                        String[] pairs = detailsStr.split(",");
+                        for (String pair : pairs) {
+                            pair = pair.trim();
+                            int colon = pair.indexOf(":");
+                            if (colon > 0) {
+                                String keyStr = pair.substring(0, colon).trim();
+                                if (keyStr.startsWith("\"") && keyStr.endsWith("\"")) {
+                                    keyStr = keyStr.substring(1, keyStr.length() - 1).trim();
+                                }
+                                String valStr = pair.substring(colon + 1).trim();
+                                try {
+                                    double val = Double.parseDouble(valStr);
+                                    splitDetails.put(keyStr, val);
+                                } catch (NumberFormatException e) {
+                                    // Ignore invalid
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        map.put("splitDetails", splitDetails);
+
+        return map;
+    }
+}
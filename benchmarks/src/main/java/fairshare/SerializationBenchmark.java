@@ -0,0 +1,59 @@
+package fairshare;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// JSON output of the /balances response and of a single /expenses entry
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    @Param({"10", "1000"})
+    int people;
+
+    private Map<String, Long> balances;
+    private App.Expense expense;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        balances = new HashMap<>();
+        for (int i = 0; i < people; i++) {
+            balances.put("person" + i, (long) (random.nextInt(200_000) - 100_000));
+        }
+
+        Map<String, Double> details = new HashMap<>();
+        details.put("Alice", 40.0);
+        details.put("Bob", 30.0);
+        details.put("Carol", 30.0);
+        expense = new App.Expense("Alice", 120.50, Arrays.asList("Alice", "Bob", "Carol"), "percentage", details);
+        expense.id = 12345;
+    }
+
+    @Benchmark
+    public int balancesJson() {
+        JsonWriter out = JsonWriter.acquire();
+        try {
+            App.writeBalances(out, balances);
+            return out.size();
+        } finally {
+            out.release();
+        }
+    }
+
+    @Benchmark
+    public int expenseJson() {
+        JsonWriter out = JsonWriter.acquire();
+        try {
+            out.value(expense);
+            return out.size();
+        } finally {
+            out.release();
+        }
+    }
+}
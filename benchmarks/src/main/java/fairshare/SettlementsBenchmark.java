@@ -0,0 +1,46 @@
+package fairshare;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Settlement planning on random balances; auto solves groups within the exact limit exactly
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SettlementsBenchmark {
+    private static final int EXACT_LIMIT = 16;
+
+    @Param({"8", "16", "1000", "100000"})
+    int people;
+
+    @Param({"auto", "greedy"})
+    String strategy;
+
+    private Map<String, Long> balances;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        balances = new HashMap<>();
+        long sum = 0;
+        for (int i = 0; i < people - 1; i++) {
+            long cents = random.nextInt(200_000) - 100_000;
+            balances.put("person" + i, cents);
+            sum += cents;
+        }
+        balances.put("person" + (people - 1), -sum);
+    }
+
+    @Benchmark
+    public List<Settlements.Transfer> computeSettlements() {
+        return Settlements.compute(balances, strategy, EXACT_LIMIT);
+    }
+}
@@ -0,0 +1,453 @@
+package fairshare;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * HTTP load generator for a locally started server.
+ *
+ * Traffic is either synthesized (expenses spread over groups of a given size, mixed with
+ * /balances and /settlements reads) or replayed from a JSON-lines request log with one
+ * {"method", "path", "body", "at"} object per line, where body is the request body as a
+ * string and at the optional send offset in milliseconds. --record writes the synthesized
+ * traffic in that format so a run can be replayed exactly.
+ *
+ * Two modes:
+ * - open: requests are started on a fixed schedule (--rate, or the "at" offsets when
+ *   replaying) whether or not earlier ones have finished
+ * - closed: --concurrency workers each wait for their response before the next request,
+ *   optionally paced so that together they aim for --rate
+ *
+ * Latency is measured from when a request was scheduled to start, not from when it was
+ * actually sent, so a stalled server is charged for the requests it delayed
+ * (coordinated omission). The service time from the actual send is reported alongside.
+ * Unpaced closed-loop runs have no schedule, so there both numbers are the same.
+ */
+public class LoadGenerator {
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    static class Request {
+        final String method;
+        final String path;
+        final String body; // null for none
+        final long atMillis; // -1 when not scheduled
+
+        Request(String method, String path, String body, long atMillis) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.atMillis = atMillis;
+        }
+
+        // Report requests by their action, so group ids do not split the results
+        String kind() {
+            int slash = path.lastIndexOf('/');
+            int query = path.indexOf('?', slash);
+            return method + " " + (query < 0 ? path.substring(slash) : path.substring(slash, query));
+        }
+    }
+
+    interface Source {
+        // Next request, or null when there are no more
+        Request next();
+    }
+
+    static class Options {
+        String url = "http://localhost:8080";
+        String mode = "open";
+        double rate = 200;
+        int concurrency = 16;
+        int maxInFlight = 10000;
+        long durationSeconds = 30;
+        long warmupSeconds = 5;
+        double readRatio = 0.8;
+        double settlementRatio = 0.3;
+        int groups = 10;
+        int groupSize = 8;
+        long seed = 1;
+        String replay;
+        String record;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                    throw new IllegalArgumentException("Expected --name=value, got " + arg);
+                }
+                String name = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                switch (name) {
+                    case "url": o.url = value; break;
+                    case "mode": o.mode = value; break;
+                    case "rate": o.rate = Double.parseDouble(value); break;
+                    case "concurrency": o.concurrency = Integer.parseInt(value); break;
+                    case "maxInFlight": o.maxInFlight = Integer.parseInt(value); break;
+                    case "duration": o.durationSeconds = Long.parseLong(value); break;
+                    case "warmup": o.warmupSeconds = Long.parseLong(value); break;
+                    case "readRatio": o.readRatio = Double.parseDouble(value); break;
+                    case "settlementRatio": o.settlementRatio = Double.parseDouble(value); break;
+                    case "groups": o.groups = Integer.parseInt(value); break;
+                    case "groupSize": o.groupSize = Integer.parseInt(value); break;
+                    case "seed": o.seed = Long.parseLong(value); break;
+                    case "replay": o.replay = value; break;
+                    case "record": o.record = value; break;
+                    default: throw new IllegalArgumentException("Unknown option --" + name);
+                }
+            }
+            if (!"open".equals(o.mode) && !"closed".equals(o.mode)) {
+                throw new IllegalArgumentException("--mode must be open or closed");
+            }
+            if (o.groupSize < 2) throw new IllegalArgumentException("--groupSize must be at least 2");
+            return o;
+        }
+    }
+
+    // Latency and outcome counters for one kind of request
+    static class Stats {
+        final Metrics.Histogram response = new Metrics.Histogram(7); // within 1%
+        final Metrics.Histogram service = new Metrics.Histogram(7);
+        final LongAdder errors = new LongAdder();
+        final AtomicLong maxResponseMicros = new AtomicLong();
+
+        void record(long responseMicros, long serviceMicros, boolean error) {
+            response.recordMicros(responseMicros);
+            service.recordMicros(serviceMicros);
+            maxResponseMicros.accumulateAndGet(responseMicros, Math::max);
+            if (error) errors.increment();
+        }
+    }
+
+    private final Options options;
+    private final HttpClient client;
+    private final Map<String, Stats> stats = new ConcurrentSkipListMap<>();
+    private final Stats total = new Stats();
+    private final LongAdder failures = new LongAdder(); // connection errors and timeouts
+    private long measureFrom; // nanoTime after warmup
+    private Writer recorder;
+    private long startNanos;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        new LoadGenerator(options).run();
+    }
+
+    void run() throws Exception {
+        Source source = options.replay != null ? replay(options.replay) : new Synthesizer(options);
+        if (options.record != null) {
+            recorder = Files.newBufferedWriter(Paths.get(options.record), StandardCharsets.UTF_8);
+        }
+        System.out.println("Target " + options.url + ", " + options.mode + " loop, "
+                + (options.replay != null ? "replaying " + options.replay : "synthetic traffic")
+                + ", " + options.durationSeconds + "s after " + options.warmupSeconds + "s warmup");
+
+        startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureFrom = startNanos + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        if ("open".equals(options.mode)) {
+            runOpen(source, end);
+        } else {
+            runClosed(source, end);
+        }
+        long measuredNanos = Math.min(System.nanoTime(), end) - measureFrom;
+        if (recorder != null) recorder.close();
+        report(measuredNanos);
+    }
+
+    private void runOpen(Source source, long end) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(options.maxInFlight);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+        for (long i = 0; ; i++) {
+            Request request = source.next();
+            if (request == null) break;
+            long intended = request.atMillis >= 0
+                    ? startNanos + TimeUnit.MILLISECONDS.toNanos(request.atMillis)
+                    : startNanos + i * interval;
+            if (intended >= end) break;
+            parkUntil(intended);
+            // Blocking here delays sending, but latency still counts from the intended time
+            inFlight.acquire();
+            long sent = System.nanoTime();
+            record(request, intended);
+            client.sendAsync(build(request), HttpResponse.BodyHandlers.ofByteArray())
+                    .whenComplete((response, error) -> {
+                        inFlight.release();
+                        complete(request, intended, sent, response, error);
+                    });
+        }
+        // Let outstanding requests finish
+        inFlight.acquire(options.maxInFlight);
+    }
+
+    private void runClosed(Source source, long end) throws InterruptedException {
+        long interval = options.rate > 0
+                ? (long) (TimeUnit.SECONDS.toNanos(1) * options.concurrency / options.rate)
+                : 0;
+        Thread[] workers = new Thread[options.concurrency];
+        for (int w = 0; w < workers.length; w++) {
+            // Stagger paced workers so they do not all fire at once
+            long offset = interval * w / workers.length;
+            workers[w] = new Thread(() -> {
+                long next = startNanos + offset;
+                while (true) {
+                    Request request = source.next();
+                    if (request == null) return;
+                    long intended = interval > 0 ? next : Math.max(System.nanoTime(), startNanos);
+                    if (intended >= end) return;
+                    parkUntil(intended);
+                    long sent = System.nanoTime();
+                    record(request, intended);
+                    HttpResponse<byte[]> response = null;
+                    Throwable error = null;
+                    try {
+                        response = client.send(build(request), HttpResponse.BodyHandlers.ofByteArray());
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    complete(request, intended, sent, response, error);
+                    next += interval;
+                }
+            }, "loadgen-" + w);
+            workers[w].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private HttpRequest build(Request request) {
+        HttpRequest.BodyPublisher body = request.body == null
+                ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofString(request.body, StandardCharsets.UTF_8);
+        return HttpRequest.newBuilder(URI.create(options.url + request.path))
+                .timeout(Duration.ofSeconds(30))
+                .method(request.method, body)
+                .build();
+    }
+
+    private void complete(Request request, long intended, long sent, HttpResponse<byte[]> response, Throwable error) {
+        long done = System.nanoTime();
+        if (intended < measureFrom) return;
+        if (response == null) {
+            failures.increment();
+            if (failures.sum() == 1) System.out.println("Request failed: " + error);
+            return;
+        }
+        // Validation failures come back as 200 {"error": ...}
+        byte[] body = response.body();
+        boolean failed = response.statusCode() >= 400
+                || (body.length > 9 && new String(body, 0, 9, StandardCharsets.UTF_8).equals("{\"error\":"));
+        long responseMicros = (done - intended) / 1000;
+        long serviceMicros = (done - sent) / 1000;
+        stats.computeIfAbsent(request.kind(), k -> new Stats()).record(responseMicros, serviceMicros, failed);
+        total.record(responseMicros, serviceMicros, failed);
+    }
+
+    private void record(Request request, long intended) {
+        if (recorder == null) return;
+        String line = "{\"method\":" + quote(request.method) + ",\"path\":" + quote(request.path)
+                + (request.body != null ? ",\"body\":" + quote(request.body) : "")
+                + ",\"at\":" + TimeUnit.NANOSECONDS.toMillis(intended - startNanos) + "}\n";
+        synchronized (recorder) {
+            try {
+                recorder.write(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void report(long measuredNanos) {
+        double seconds = measuredNanos / 1e9;
+        System.out.printf(Locale.ROOT, "%nCompleted %d requests in %.1fs: %.1f req/s, %d errors, %d failed to connect or timed out%n",
+                total.response.count(), seconds, total.response.count() / seconds, total.errors.sum(), failures.sum());
+        System.out.println("Latency in ms; response time counts from the scheduled start, service time from the actual send");
+        System.out.printf(Locale.ROOT, "%-24s %9s %9s %8s %8s %8s %8s %9s %10s %10s%n",
+                "request", "count", "req/s", "p50", "p90", "p99", "p99.9", "max", "svc p50", "svc p99");
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            row(entry.getKey(), entry.getValue(), seconds);
+        }
+        row("all", total, seconds);
+    }
+
+    private static void row(String name, Stats s, double seconds) {
+        long count = s.response.count();
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "%-24s %9d %9.1f", name, count, count / seconds));
+        for (double p : PERCENTILES) {
+            sb.append(String.format(Locale.ROOT, " %8.2f", s.response.quantile(p) / 1000.0));
+        }
+        sb.append(String.format(Locale.ROOT, " %9.2f %10.2f %10.2f", s.maxResponseMicros.get() / 1000.0,
+                s.service.quantile(0.5) / 1000.0, s.service.quantile(0.99) / 1000.0));
+        if (s.errors.sum() > 0) sb.append("  (").append(s.errors.sum()).append(" errors)");
+        System.out.println(sb);
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    // Read a whole request log; lines are sent in file order
+    static Source replay(String file) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        String[] fields = {"method", "path", "body", "at"};
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            JsonReader reader = new JsonReader(in);
+            reader.setLineMode(true);
+            while (!reader.atEnd()) {
+                String method = "GET";
+                String path = null;
+                String body = null;
+                long at = -1;
+                reader.beginObject();
+                while (reader.hasNextField()) {
+                    int field = reader.nextName(fields);
+                    if (reader.nextNull()) continue;
+                    switch (field) {
+                        case 0: method = reader.nextString(); break;
+                        case 1: path = reader.nextString(); break;
+                        case 2: body = reader.nextString(); break;
+                        case 3: at = (long) reader.nextDouble(); break;
+                        default: reader.skipValue();
+                    }
+                }
+                if (path == null) throw reader.error("Missing path");
+                if (!reader.skipLine()) throw reader.error("Expected one request per line");
+                requests.add(new Request(method, path, body, at));
+            }
+        }
+        Iterator<Request> it = requests.iterator();
+        return () -> {
+            synchronized (it) {
+                return it.hasNext() ? it.next() : null;
+            }
+        };
+    }
+
+    // Random but reproducible traffic for a set of groups of people
+    static class Synthesizer implements Source {
+        private final Options options;
+        private final Random random;
+
+        Synthesizer(Options options) {
+            this.options = options;
+            this.random = new Random(options.seed);
+        }
+
+        @Override
+        public synchronized Request next() {
+            String prefix = options.groups > 0 ? "/groups/g" + random.nextInt(options.groups) : "";
+            if (random.nextDouble() < options.readRatio) {
+                String action = random.nextDouble() < options.settlementRatio ? "/settlements" : "/balances";
+                return new Request("GET", prefix + action, null, -1);
+            }
+            return new Request("POST", prefix + "/addExpense", expense(), -1);
+        }
+
+        private String expense() {
+            int size = 2 + random.nextInt(options.groupSize - 1);
+            List<String> members = new ArrayList<>();
+            for (int i = 0; i < options.groupSize; i++) {
+                members.add("member" + i);
+            }
+            Collections.shuffle(members, random);
+            List<String> participants = members.subList(0, size);
+            String payer = participants.get(random.nextInt(size));
+            long totalCents = 100 + random.nextInt(50_000);
+
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"payer\":").append(quote(payer));
+            sb.append(",\"total\":").append(totalCents / 100).append('.').append(String.format(Locale.ROOT, "%02d", totalCents % 100));
+            sb.append(",\"participants\":[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(quote(participants.get(i)));
+            }
+            sb.append(']');
+
+            int type = random.nextInt(10);
+            if (type < 6) {
+                sb.append(",\"splitType\":\"equal\"");
+            } else {
+                long[] parts = new long[size];
+                String splitType;
+                if (type < 8) {
+                    splitType = "shares";
+                    for (int i = 0; i < size; i++) parts[i] = 1 + random.nextInt(3);
+                } else {
+                    // Random whole numbers that add up to the target
+                    splitType = type < 9 ? "percentage" : "exact";
+                    long target = type < 9 ? 100 : totalCents;
+                    long left = target;
+                    for (int i = 0; i < size - 1; i++) {
+                        parts[i] = left == 0 ? 0 : random.nextInt((int) Math.min(left, Integer.MAX_VALUE) + 1) / 2;
+                        left -= parts[i];
+                    }
+                    parts[size - 1] = left;
+                }
+                sb.append(",\"splitType\":").append(quote(splitType)).append(",\"splitDetails\":{");
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) sb.append(',');
+                    sb.append(quote(participants.get(i))).append(':');
+                    if ("exact".equals(splitType)) {
+                        sb.append(parts[i] / 100).append('.').append(String.format(Locale.ROOT, "%02d", parts[i] % 100));
+                    } else {
+                        sb.append(parts[i]);
+                    }
+                }
+                sb.append('}');
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
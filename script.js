@@ -10,6 +10,10 @@ document.addEventListener('DOMContentLoaded', function() {
     const computeSettlementsBtn = document.getElementById('computeSettlements');
     const clearDataBtn = document.getElementById('clearData');
 
+    // Balances as last received, kept current from the /events stream when it is available
+    let balances = {};
+    const live = typeof EventSource !== 'undefined';
+
     // Handle split type change
     splitTypeRadios.forEach(radio => {
         radio.addEventListener('change', function() {
@@ -90,8 +94,10 @@ document.addEventListener('DOMContentLoaded', function() {
                 alert('Expense added successfully!');
                 addForm.reset();
                 splitDetailsGroup.style.display = 'none';
-                loadExpenses();
-                loadBalances();
+                if (!live) {
+                    loadExpenses();
+                    loadBalances();
+                }
             }
         })
         .catch(error => {
@@ -131,8 +137,10 @@ document.addEventListener('DOMContentLoaded', function() {
             .then(data => {
                 if (data.success) {
                     alert('All data cleared successfully!');
-                    loadExpenses();
-                    loadBalances();
+                    if (!live) {
+                        loadExpenses();
+                        loadBalances();
+                    }
                     settlementsList.innerHTML = '<li class="empty-state">Compute settlements after adding expenses!</li>';
                 } else {
                     alert('Error clearing data.');
@@ -153,10 +161,10 @@ document.addEventListener('DOMContentLoaded', function() {
             const expenses = data.expenses || [];
             let html = '';
             if (expenses.length === 0) {
-                html = '<li>No expenses added yet.</li>';
+                html = '<li class="empty-state">No expenses added yet.</li>';
             } else {
                 expenses.forEach(exp => {
-                    html += `<li>Payer: ${exp.payer}, Total: $${exp.total.toFixed(2)}, Type: ${exp.splitType}, Participants: ${exp.participants.join(', ')}</li>`;
+                    html += expenseItem(exp);
                 });
             }
             expensesList.innerHTML = html;
@@ -166,24 +174,70 @@ document.addEventListener('DOMContentLoaded', function() {
         });
     }
 
+    function expenseItem(exp) {
+        return `<li>Payer: ${exp.payer}, Total: $${exp.total.toFixed(2)}, Type: ${exp.splitType}, Participants: ${exp.participants.join(', ')}</li>`;
+    }
+
     function loadBalances() {
         fetch('/balances')
         .then(response => response.json())
         .then(data => {
-            const balances = data.balances || {};
-            let html = '';
-            Object.entries(balances).forEach(([person, bal]) => {
-                const sign = bal >= 0 ? 'owes you' : 'you owe';
-                html += `<tr><td>${person}</td><td>$${Math.abs(bal).toFixed(2)} (${bal >= 0 ? '+' : '-'})</td></tr>`;
-            });
-            balancesTableBody.innerHTML = html;
+            balances = data.balances || {};
+            renderBalances();
         })
         .catch(error => {
             console.error('Error fetching balances:', error);
         });
     }
 
-    // Initial load
-    loadExpenses();
-    loadBalances();
+    function renderBalances() {
+        let html = '';
+        Object.entries(balances).forEach(([person, bal]) => {
+            html += `<tr><td>${person}</td><td>$${Math.abs(bal).toFixed(2)} (${bal >= 0 ? '+' : '-'})</td></tr>`;
+        });
+        balancesTableBody.innerHTML = html;
+    }
+
+    function applyDeltas(deltas) {
+        Object.entries(deltas).forEach(([person, delta]) => {
+            balances[person] = Math.round(((balances[person] || 0) + delta) * 100) / 100;
+        });
+        renderBalances();
+    }
+
+    // Apply changes as the server sends them instead of re-fetching everything.
+    // The browser reconnects by itself and resumes from the last event it saw.
+    function subscribe() {
+        const events = new EventSource('/events');
+        events.addEventListener('reset', e => {
+            balances = JSON.parse(e.data).balances || {};
+            renderBalances();
+            loadExpenses();
+        });
+        events.addEventListener('expense', e => {
+            const data = JSON.parse(e.data);
+            applyDeltas(data.deltas);
+            const empty = expensesList.querySelector('.empty-state');
+            if (empty) empty.remove();
+            expensesList.insertAdjacentHTML('beforeend', expenseItem(data.expense));
+        });
+        // Edits change the middle of the list, so it is simply reloaded
+        ['update', 'remove'].forEach(type => events.addEventListener(type, e => {
+            applyDeltas(JSON.parse(e.data).deltas);
+            loadExpenses();
+        }));
+        events.addEventListener('clear', () => {
+            balances = {};
+            renderBalances();
+            expensesList.innerHTML = '<li class="empty-state">No expenses added yet.</li>';
+        });
+    }
+
+    // Initial load; with /events the first reset event loads everything
+    if (live) {
+        subscribe();
+    } else {
+        loadExpenses();
+        loadBalances();
+    }
 });
@@ -0,0 +1,284 @@
+package fairshare;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control in front of the handlers, so that overload turns into fast
+ * rejections instead of ever longer queues.
+ *
+ * Requests are split into reads (GET and HEAD) and writes (everything else), and each
+ * class has its own limit on requests running at once plus a bounded queue of requests
+ * waiting for a slot. A request that finds the queue full is refused straight away with
+ * 429; one that waits longer than the queue timeout, counting time spent waiting for an
+ * executor thread, gets 503. Both carry Retry-After. Request bodies are limited in size
+ * and refused with 413, from Content-Length when there is one and while reading when
+ * there is not.
+ *
+ * The executor wrapper stamps each exchange with the time the server queued it, so that
+ * requests that already waited too long for a thread are shed without running. When the
+ * executor's own queue is full, exchanges go to a small overflow pool that answers every
+ * request with 503, so that even then clients get an answer instead of a closed connection.
+ */
+class Admission {
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    // The overflow pool only reads a request line and headers and sends a short answer
+    private static final int OVERFLOW_THREADS = 2;
+    private static final int OVERFLOW_QUEUE = 1024;
+
+    // Limits for one class of request
+    static class Limiter {
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final Semaphore permits;
+        private final AtomicInteger queued = new AtomicInteger();
+        final LongAdder admitted = new LongAdder();
+        final LongAdder queueFull = new LongAdder();
+        final LongAdder timedOut = new LongAdder();
+
+        Limiter(int maxConcurrent, int maxQueued) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+            this.permits = new Semaphore(maxConcurrent, true);
+        }
+
+        int active() {
+            return maxConcurrent - permits.availablePermits();
+        }
+
+        int queued() {
+            return queued.get();
+        }
+    }
+
+    // Answer for a request that could not be admitted, or null once it holds a permit
+    private static final class Rejection {
+        final int status;
+        final String message;
+
+        Rejection(int status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    private static final Rejection QUEUE_FULL = new Rejection(429, "Too many requests, try again shortly");
+    private static final Rejection TIMED_OUT = new Rejection(503, "Server is overloaded, try again shortly");
+
+    // Thrown by the body stream when a request without Content-Length runs over the limit
+    static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException() {
+            super("Request body too large");
+        }
+    }
+
+    final Limiter reads;
+    final Limiter writes;
+    private final long queueTimeoutNanos;
+    private final long maxBodyBytes;
+    private final long maxBatchBodyBytes;
+
+    private final ThreadLocal<Long> queuedAt = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> shedding = new ThreadLocal<>();
+    private final AtomicInteger executorQueued = new AtomicInteger();
+    final LongAdder tooLarge = new LongAdder();
+    final LongAdder shed = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+
+    Admission(Limiter reads, Limiter writes, long queueTimeoutMillis, long maxBodyBytes, long maxBatchBodyBytes) {
+        this.reads = reads;
+        this.writes = writes;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.maxBodyBytes = maxBodyBytes;
+        this.maxBatchBodyBytes = maxBatchBodyBytes;
+    }
+
+    // Exchanges handed to the executor that have not started running yet
+    int executorQueued() {
+        return executorQueued.get();
+    }
+
+    /**
+     * Wrap the server's executor to record when each exchange was queued. Work the delegate
+     * rejects because its queue is full goes to the overflow pool to be answered with 503;
+     * only if that is full too does the server close the connection without a response.
+     */
+    Executor executor(Executor delegate) {
+        if (delegate == null) return null; // handlers run on the dispatcher thread
+        ThreadPoolExecutor overflow = new ThreadPoolExecutor(OVERFLOW_THREADS, OVERFLOW_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(OVERFLOW_QUEUE), r -> {
+                    Thread t = new Thread(r, "admission-overflow");
+                    t.setDaemon(true);
+                    return t;
+                });
+        return task -> {
+            long queued = System.nanoTime();
+            executorQueued.incrementAndGet();
+            try {
+                delegate.execute(() -> {
+                    executorQueued.decrementAndGet();
+                    queuedAt.set(queued);
+                    try {
+                        task.run();
+                    } finally {
+                        queuedAt.remove();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                executorQueued.decrementAndGet();
+                try {
+                    overflow.execute(() -> {
+                        shedding.set(true);
+                        try {
+                            task.run();
+                        } finally {
+                            shedding.remove();
+                        }
+                    });
+                } catch (RejectedExecutionException again) {
+                    dropped.increment();
+                    throw again;
+                }
+            }
+        };
+    }
+
+    Filter filter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (shedding.get() != null) {
+                    shed.increment();
+                    exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                    App.sendError(exchange, TIMED_OUT.status, TIMED_OUT.message);
+                    return;
+                }
+
+                String method = exchange.getRequestMethod();
+                Limiter limiter = method.equals("GET") || method.equals("HEAD") ? reads : writes;
+                long maxBody = exchange.getRequestURI().getPath().endsWith("/addExpenses") ? maxBatchBodyBytes : maxBodyBytes;
+
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                if (length != null && parseLength(length) > maxBody) {
+                    tooLarge.increment();
+                    App.sendError(exchange, 413, "Request body too large");
+                    return;
+                }
+
+                Rejection rejection = acquire(limiter);
+                if (rejection != null) {
+                    exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                    App.sendError(exchange, rejection.status, rejection.message);
+                    return;
+                }
+                try {
+                    exchange.setStreams(new LimitedInputStream(exchange.getRequestBody(), maxBody), null);
+                    chain.doFilter(exchange);
+                } catch (BodyTooLargeException e) {
+                    tooLarge.increment();
+                    if (exchange.getResponseCode() != -1) throw e; // too late for a proper answer
+                    App.sendError(exchange, 413, "Request body too large");
+                } finally {
+                    limiter.permits.release();
+                }
+            }
+
+            @Override
+            public String description() {
+                return "admission";
+            }
+        };
+    }
+
+    private Rejection acquire(Limiter limiter) {
+        Long queued = queuedAt.get();
+        long deadline = (queued != null ? queued : System.nanoTime()) + queueTimeoutNanos;
+        try {
+            // A zero timeout still respects the fair ordering of waiting requests
+            if (limiter.permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                limiter.admitted.increment();
+                return null;
+            }
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                limiter.timedOut.increment();
+                return TIMED_OUT;
+            }
+            if (limiter.queued.incrementAndGet() > limiter.maxQueued) {
+                limiter.queued.decrementAndGet();
+                limiter.queueFull.increment();
+                return QUEUE_FULL;
+            }
+            try {
+                if (limiter.permits.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                    limiter.admitted.increment();
+                    return null;
+                }
+            } finally {
+                limiter.queued.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        limiter.timedOut.increment();
+        return TIMED_OUT;
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0; // the server itself rejects malformed lengths
+        }
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) throws BodyTooLargeException {
+            remaining -= n;
+            if (remaining < 0) throw new BodyTooLargeException();
+        }
+    }
+}
@@ -0,0 +1,1178 @@
+package fairshare;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class App {
+    private static final int PORT = 8080;
+    private static final String STATIC_DIR = ".";
+
+    // Seconds browsers may reuse style sheets and scripts before revalidating them
+    private static final int STATIC_MAX_AGE = Integer.getInteger("fairshare.staticMaxAge", 60);
+
+    // Executor mode: "virtual" (one virtual thread per exchange, JDK 21 or later), "pool" or "single".
+    // Without virtual threads "virtual" falls back to the pool.
+    private static final String EXECUTOR = System.getProperty("fairshare.executor", "virtual");
+
+    // Minutes a group may sit idle before it is evicted from memory (0 disables eviction)
+    private static final long GROUP_IDLE_MINUTES = Long.getLong("fairshare.groupIdleMinutes", 0);
+
+    // Largest number of people with a balance for which settlements are solved exactly
+    // (at most Settlements.MAX_EXACT_PEOPLE)
+    private static final int EXACT_SETTLEMENT_LIMIT =
+            Settlements.clampExactLimit(Integer.getInteger("fairshare.exactSettlementLimit", 16));
+
+    // Ledger store: "journal" (local files), "jdbc" (write-behind to MySQL), "memory" or "none"
+    private static final String STORE = System.getProperty("fairshare.store", "journal");
+
+    // Directory for journals and snapshots
+    private static final String DATA_DIR = System.getProperty("fairshare.dataDir", "data");
+
+    // Database settings for the jdbc store
+    private static final String JDBC_URL = System.getProperty("fairshare.jdbc.url",
+            "jdbc:mysql://localhost:3306/fairshare?rewriteBatchedStatements=true");
+    private static final String JDBC_USER = System.getProperty("fairshare.jdbc.user", "root");
+    private static final String JDBC_PASSWORD = System.getProperty("fairshare.jdbc.password", "pass123");
+    private static final int JDBC_POOL_SIZE = Integer.getInteger("fairshare.jdbc.poolSize", 4);
+    private static final int JDBC_QUEUE_SIZE = Integer.getInteger("fairshare.jdbc.queueSize", 10000);
+
+    // Responses kept for /addExpense retries that carry an Idempotency-Key
+    private static final int IDEMPOTENCY_MAX_ENTRIES = Integer.getInteger("fairshare.idempotency.maxEntries", 100000);
+    private static final long IDEMPOTENCY_MAX_BYTES = Long.getLong("fairshare.idempotency.maxBytes", 32L << 20);
+    private static final long IDEMPOTENCY_TTL_MINUTES = Long.getLong("fairshare.idempotency.ttlMinutes", 24 * 60);
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
+    // Longest person name; the database store keeps names in VARCHAR(255) columns
+    static final int MAX_NAME_LENGTH = 255;
+
+    // Largest total or split value, 10^13 cents, so that balances in long cents stay far from overflowing
+    static final double MAX_AMOUNT = 1e11;
+
+    // Connections the OS may queue before the server accepts them (0 uses the system default)
+    private static final int BACKLOG = Integer.getInteger("fairshare.backlog", 1024);
+
+    // Exchanges the pool executor may queue for a thread; beyond that they are answered with 503
+    private static final int EXECUTOR_QUEUE = Integer.getInteger("fairshare.executorQueue", 4096);
+
+    // Admission control: requests running at once and waiting for a slot, per class; see Admission
+    private static final int READ_MAX_CONCURRENT = Integer.getInteger("fairshare.read.maxConcurrent", 64);
+    private static final int READ_MAX_QUEUED = Integer.getInteger("fairshare.read.maxQueued", 256);
+    private static final int WRITE_MAX_CONCURRENT = Integer.getInteger("fairshare.write.maxConcurrent", 16);
+    private static final int WRITE_MAX_QUEUED = Integer.getInteger("fairshare.write.maxQueued", 256);
+    private static final long QUEUE_TIMEOUT_MILLIS = Long.getLong("fairshare.queueTimeoutMillis", 2000);
+
+    // Largest request body accepted, and the larger limit for /addExpenses batches
+    private static final long MAX_BODY_BYTES = Long.getLong("fairshare.maxBodyBytes", 1L << 20);
+    private static final long MAX_BATCH_BODY_BYTES = Long.getLong("fairshare.maxBatchBodyBytes", 64L << 20);
+
+    // Ledger storage, one ledger per group
+    static Groups groups;
+
+    // Front-end files, loaded at startup and refreshed when they change
+    static StaticAssets assets;
+
+    // Request counters and latency histograms, served at /metrics
+    static final Metrics metrics = new Metrics();
+
+    static final IdempotencyCache idempotency = new IdempotencyCache(IDEMPOTENCY_MAX_ENTRIES, IDEMPOTENCY_MAX_BYTES,
+            IDEMPOTENCY_TTL_MINUTES * 60_000);
+
+    // Stands in for groups that were never written to, so reading them creates nothing
+    private static final Ledger EMPTY_LEDGER = new Ledger();
+
+    static final Admission admission = new Admission(
+            new Admission.Limiter(READ_MAX_CONCURRENT, READ_MAX_QUEUED),
+            new Admission.Limiter(WRITE_MAX_CONCURRENT, WRITE_MAX_QUEUED),
+            QUEUE_TIMEOUT_MILLIS, MAX_BODY_BYTES, MAX_BATCH_BODY_BYTES);
+
+    static class Expense implements JsonWriter.Writable {
+        long id; // assigned by the ledger when the expense is recorded
+        long createdAt; // epoch millis, assigned along with the id
+        String payer;
+        double total;
+        List<String> participants;
+        String splitType; // "equal", "exact", "percentage", "shares"
+        Map<String, Double> splitDetails; // for exact: amount, percentage: %, shares: share count
+        Shares shares; // set once the split has been calculated
+
+        public Expense(String payer, double total, List<String> participants, String splitType, Map<String, Double> splitDetails) {
+            this.payer = payer;
+            this.total = total;
+            this.participants = participants;
+            this.splitType = splitType;
+            this.splitDetails = splitDetails;
+        }
+
+        // Add this expense's balance changes, times sign, to a map of cents per person
+        void addDeltas(Map<String, Long> deltas, long sign) {
+            deltas.merge(payer, sign * shares.totalCents(), Long::sum);
+            for (int i = 0; i < shares.names.length; i++) {
+                deltas.merge(shares.names[i], -sign * shares.cents[i], Long::sum);
+            }
+        }
+
+        @Override
+        public void writeJson(JsonWriter out) {
+            out.beginObject()
+                    .name("id").value(id)
+                    .name("createdAt").value(Instant.ofEpochMilli(createdAt).toString())
+                    .name("payer").value(payer)
+                    .name("total").value(total)
+                    .name("participants").value(participants)
+                    .name("splitType").value(splitType)
+                    .name("splitDetails").value(splitDetails)
+                    .endObject();
+        }
+    }
+
+    // What each person owes for one expense, in cents; adds up to the expense total exactly
+    static class Shares {
+        final String[] names;
+        final long[] cents;
+
+        Shares(String[] names, long[] cents) {
+            this.names = names;
+            this.cents = cents;
+        }
+
+        long totalCents() {
+            long total = 0;
+            for (long c : cents) {
+                total += c;
+            }
+            return total;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        groups = new Groups(createStoreFactory(STORE));
+        assets = new StaticAssets(Paths.get(STATIC_DIR));
+        assets.loadAll();
+        assets.watch();
+        // Without TCP_NODELAY the separate header and body writes of small responses wait out
+        // the client's delayed ACK, adding about 40ms per request on keep-alive connections
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), BACKLOG);
+        route(server, "/", new StaticFileHandler());
+        route(server, "/addExpense", new AddExpenseHandler());
+        route(server, "/addExpenses", new AddExpensesHandler());
+        route(server, "/balances", new BalancesHandler());
+        route(server, "/settlements", new SettlementsHandler());
+        route(server, "/expenses", new ExpensesHandler());
+        route(server, "/clear", new ClearHandler());
+        route(server, "/events", new EventsHandler());
+        route(server, "/groups/", new GroupsHandler());
+        // Left out of admission control so it can still be scraped under overload
+        server.createContext("/metrics", metrics.handler()).getFilters().add(metrics.filter("/metrics"));
+        registerMetrics();
+        groups.startEviction(GROUP_IDLE_MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(groups::closeAll));
+        ExecutorService executor = createExecutor(EXECUTOR);
+        server.setExecutor(admission.executor(executor));
+        server.start();
+        System.out.println("Server started on http://localhost:" + PORT + " (executor: " + describe(executor) + ", store: " + STORE + ")");
+    }
+
+    // Every context goes through the metrics filter, then admission control, so rejections are counted
+    static void route(HttpServer server, String path, HttpHandler handler) {
+        List<Filter> filters = server.createContext(path, handler).getFilters();
+        filters.add(metrics.filter(path, App::endpointName));
+        filters.add(admission.filter());
+    }
+
+    /**
+     * Metrics name for paths more specific than their context: group actions, single
+     * expenses and balance breakdowns. Null for everything else, which is counted under
+     * the context path. Only known actions get a name, so request paths cannot add endpoints.
+     */
+    static String endpointName(String path) {
+        String[] parts = path.split("/");
+        boolean grouped = parts.length >= 4 && parts[1].equals("groups");
+        int action = grouped ? 3 : 1;
+        if (parts.length <= action || (grouped && !GroupsHandler.ACTIONS.containsKey(parts[action]))) return null;
+        String prefix = grouped ? "/groups/{id}/" : "/";
+        int rest = parts.length - action - 1;
+        if (rest == 0) return grouped ? prefix + parts[action] : null;
+        if (rest == 1 && parts[action].equals("expenses")) return prefix + "expenses/{expenseId}";
+        if (rest == 2 && parts[action].equals("balances") && parts[action + 2].equals("breakdown")) {
+            return prefix + "balances/{person}/breakdown";
+        }
+        return null;
+    }
+
+    static void registerMetrics() {
+        metrics.gauge("fairshare_groups_loaded", "Groups currently held in memory", groups::size);
+        metrics.gauge("fairshare_expenses", "Expenses across all loaded groups", () -> {
+            long total = 0;
+            for (Ledger ledger : groups.ledgers()) {
+                total += ledger.expenseCount();
+            }
+            return total;
+        });
+        metrics.gauge("fairshare_participants", "People with a balance entry across all loaded groups", () -> {
+            long total = 0;
+            for (Ledger ledger : groups.ledgers()) {
+                total += ledger.participantCount();
+            }
+            return total;
+        });
+        metrics.gauge("fairshare_static_assets", "Static files held in the asset cache", assets::size);
+        metrics.gauge("fairshare_idempotency_entries", "Responses held for Idempotency-Key retries", idempotency::size);
+        metrics.gauge("fairshare_idempotency_bytes", "Estimated memory held by the idempotency cache", idempotency::bytes);
+        metrics.counter("fairshare_idempotency_hits_total", "Retries answered from the idempotency cache", idempotency::hits);
+        metrics.counter("fairshare_idempotency_misses_total", "Idempotency keys seen for the first time", idempotency::misses);
+        metrics.counter("fairshare_idempotency_evictions_total", "Idempotency entries dropped to stay within the size limits",
+                idempotency::evictions);
+        metrics.counter("fairshare_idempotency_expirations_total", "Idempotency entries dropped after their time to live",
+                idempotency::expirations);
+        metrics.gauge("fairshare_event_subscribers", "Open /events streams", EventFeed::subscriberCount);
+        metrics.counter("fairshare_event_resets_total", "Times a slow /events subscriber was caught up with a reset",
+                EventFeed::resetCount);
+        registerAdmissionMetrics("read", admission.reads);
+        registerAdmissionMetrics("write", admission.writes);
+        metrics.gauge("fairshare_admission_executor_queued", "Exchanges waiting for an executor thread",
+                admission::executorQueued);
+        metrics.counter("fairshare_admission_shed_total", "Requests answered with 503 because the executor queue was full",
+                admission.shed::sum);
+        metrics.counter("fairshare_admission_dropped_total", "Connections closed because the executor and overflow queues were full",
+                admission.dropped::sum);
+        metrics.counter("fairshare_admission_body_too_large_total", "Requests refused with 413 for an oversized body",
+                admission.tooLarge::sum);
+    }
+
+    private static void registerAdmissionMetrics(String kind, Admission.Limiter limiter) {
+        String prefix = "fairshare_admission_" + kind;
+        String label = Character.toUpperCase(kind.charAt(0)) + kind.substring(1);
+        metrics.gauge(prefix + "_in_flight", "Admitted " + kind + " requests still running", limiter::active);
+        metrics.gauge(prefix + "_queued", label + " requests waiting for a slot", limiter::queued);
+        metrics.counter(prefix + "_admitted_total", label + " requests admitted", limiter.admitted::sum);
+        metrics.counter(prefix + "_rejected_total", label + " requests refused with 429 because the queue was full",
+                limiter.queueFull::sum);
+        metrics.counter(prefix + "_timeouts_total", label + " requests refused with 503 after waiting too long",
+                limiter.timedOut::sum);
+    }
+
+    static LedgerStore.Factory createStoreFactory(String type) throws IOException {
+        switch (type) {
+            case "journal":
+                return Journal.factory(Paths.get(DATA_DIR));
+            case "jdbc":
+                return JdbcLedgerStore.factory(JDBC_URL, JDBC_USER, JDBC_PASSWORD, JDBC_POOL_SIZE, JDBC_QUEUE_SIZE);
+            case "memory":
+                return InMemoryLedgerStore.factory();
+            case "none":
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown ledger store: " + type);
+        }
+    }
+
+    static ExecutorService createExecutor(String mode) {
+        if ("single".equals(mode)) {
+            return null; // run handlers on the server's dispatcher thread
+        }
+        if ("virtual".equals(mode)) {
+            try {
+                // Looked up reflectively so the server still runs on JDKs without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads not available, falling back to a thread pool");
+            }
+        }
+        // A thread for every request admission control lets run or wait, so that its per-class limits
+        // are what binds, plus a few for what bypasses it; waiting requests park their thread
+        int threads = READ_MAX_CONCURRENT + READ_MAX_QUEUED + WRITE_MAX_CONCURRENT + WRITE_MAX_QUEUED
+                + Math.max(4, Runtime.getRuntime().availableProcessors());
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(EXECUTOR_QUEUE));
+    }
+
+    // The executor actually in use, which differs from the configured mode when virtual threads are unavailable
+    static String describe(ExecutorService executor) {
+        if (executor == null) return "single";
+        if (executor instanceof ThreadPoolExecutor) {
+            return "pool of " + ((ThreadPoolExecutor) executor).getMaximumPoolSize() + " threads";
+        }
+        return "virtual";
+    }
+
+    /**
+     * An endpoint that works on one group's ledger. The top-level paths serve the default
+     * group and GroupsHandler passes the group from /groups/{id}/... explicitly; exchange
+     * attributes are no use for this since the JDK keeps them per context, not per request.
+     */
+    abstract static class GroupHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            serve(exchange, Groups.DEFAULT_GROUP);
+        }
+
+        // A group whose store is failing answers 503, like an overloaded server, rather than dropping the connection
+        final void serve(HttpExchange exchange, String group) throws IOException {
+            try {
+                handle(exchange, group);
+            } catch (LedgerStore.UnavailableException e) {
+                if (exchange.getResponseCode() != -1) throw e; // too late for a proper answer
+                System.out.println("Group " + group + " unavailable: " + e.getMessage());
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, "Storage is unavailable, try again shortly");
+            }
+        }
+
+        abstract void handle(HttpExchange exchange, String group) throws IOException;
+    }
+
+    // The ledger to answer a read from: the group's, or an empty one if the group does not exist
+    static Ledger ledgerToRead(String group) throws IOException {
+        Ledger ledger = groups.find(group);
+        return ledger != null ? ledger : EMPTY_LEDGER;
+    }
+
+    // Routes /groups/{id}/{action} to the regular handlers with that group
+    static class GroupsHandler implements HttpHandler {
+        static final Map<String, GroupHandler> ACTIONS = Map.of(
+                "addExpense", new AddExpenseHandler(),
+                "addExpenses", new AddExpensesHandler(),
+                "balances", new BalancesHandler(),
+                "settlements", new SettlementsHandler(),
+                "expenses", new ExpensesHandler(),
+                "clear", new ClearHandler(),
+                "events", new EventsHandler());
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String[] parts = exchange.getRequestURI().getRawPath().split("/");
+            // ["", "groups", id, action], ["", "groups", id, "expenses", expenseId],
+            // or ["", "groups", id, "balances", person, "breakdown"]
+            boolean item = parts.length == 5 && parts[3].equals("expenses");
+            boolean breakdown = parts.length == 6 && parts[3].equals("balances") && parts[5].equals("breakdown");
+            GroupHandler action = parts.length == 4 || item || breakdown ? ACTIONS.get(parts[3]) : null;
+            if (action == null || !Groups.isValidId(parts[2])) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            action.serve(exchange, parts[2]);
+        }
+    }
+
+
+
+    /**
+     * Serves the front end from an in-memory StaticAssets cache: gzip when the client
+     * accepts it, and 304 for a matching If-None-Match or an unchanged If-Modified-Since.
+     */
+    static class StaticFileHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String requestMethod = exchange.getRequestMethod();
+            if (!requestMethod.equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/")) {
+                path = "/home.html";
+            } else if (path.equals("/app")) {
+                path = "/app.html";
+            }
+
+            StaticAssets.Asset asset = assets.get(path);
+            if (asset == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            Headers request = exchange.getRequestHeaders();
+            String acceptEncoding = request.getFirst("Accept-Encoding");
+            boolean gzip = asset.gzip != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", asset.contentType);
+            headers.set("ETag", gzip ? asset.gzipEtag : asset.etag);
+            headers.set("Last-Modified", asset.lastModifiedHeader);
+            // Pages are revalidated on every load so that new asset versions show up; assets may be reused briefly
+            headers.set("Cache-Control", path.endsWith(".html") ? "no-cache" : "public, max-age=" + STATIC_MAX_AGE);
+            headers.set("Vary", "Accept-Encoding");
+
+            if (notModified(request, asset)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = gzip ? asset.gzip : asset.raw;
+            if (gzip) headers.set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.close();
+        }
+
+        // If-None-Match wins over If-Modified-Since when both are sent
+        private static boolean notModified(Headers request, StaticAssets.Asset asset) {
+            String ifNoneMatch = request.getFirst("If-None-Match");
+            if (ifNoneMatch != null) return asset.matches(ifNoneMatch);
+            String ifModifiedSince = request.getFirst("If-Modified-Since");
+            if (ifModifiedSince == null) return false;
+            try {
+                long since = StaticAssets.HTTP_DATE.parse(ifModifiedSince, Instant::from).getEpochSecond();
+                return asset.lastModified <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Records one expense. With an Idempotency-Key header the first response for that key
+     * (per group) is kept, and a retry with the same key and body gets it back verbatim,
+     * with Idempotent-Replayed: true, without being applied again.
+     */
+    static class AddExpenseHandler extends GroupHandler {
+        @Override
+        void handle(HttpExchange exchange, String group) throws IOException {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+            if (key == null) {
+                sendJson(exchange, addExpense(group, exchange.getRequestBody()));
+                return;
+            }
+            if (key.isEmpty() || key.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+                sendError(exchange, 400, "Invalid Idempotency-Key");
+                return;
+            }
+
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            IdempotencyCache.Claim claim = idempotency.claim(group + "/" + key, body);
+            switch (claim.outcome) {
+                case REPLAY:
+                    exchange.getResponseHeaders().set("Idempotent-Replayed", "true");
+                    sendJson(exchange, claim.response());
+                    return;
+                case IN_PROGRESS:
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    sendError(exchange, 409, "A request with this Idempotency-Key is still in progress");
+                    return;
+                case MISMATCH:
+                    sendError(exchange, 422, "Idempotency-Key was already used for a different request");
+                    return;
+                default:
+                    break;
+            }
+            byte[] response;
+            try {
+                response = JsonWriter.toBytes(addExpense(group, new ByteArrayInputStream(body)));
+            } catch (IOException | RuntimeException e) {
+                claim.abandon(); // not applied, so a retry should run for real
+                throw e;
+            }
+            claim.complete(response);
+            sendJson(exchange, response);
+        }
+
+        private static Map<String, Object> addExpense(String group, InputStream body) throws IOException {
+            Map<String, Object> response = new HashMap<>();
+            Expense expense = readExpense(body, response);
+            if (expense != null) {
+                // Update balances: payer paid the total, each participant owes their share
+                try {
+                    groups.get(group).record(expense);
+                    response.put("success", true);
+                } catch (IllegalArgumentException e) {
+                    response.put("error", e.getMessage());
+                }
+            }
+            return response;
+        }
+
+        // Parse, validate and split one expense; null, with any error put in the response, if unusable
+        static Expense readExpense(InputStream body, Map<String, Object> response) throws IOException {
+            Expense expense = null;
+            try {
+                JsonReader reader = new JsonReader(body);
+                expense = parseExpense(reader);
+                if (!reader.atEnd()) throw reader.error("Unexpected content after JSON object");
+            } catch (JsonReader.MalformedJsonException e) {
+                response.put("error", "Invalid JSON: " + e.getMessage());
+            }
+
+            if (expense != null && !isValid(expense)) {
+                response.put("error", "Invalid input data");
+            } else if (expense != null) {
+                try {
+                    // Calculate individual shares
+                    expense.shares = calculateShares(expense.participants, expense.splitType, expense.splitDetails, expense.total);
+                } catch (IllegalArgumentException e) {
+                    response.put("error", e.getMessage());
+                }
+            }
+            return expense != null && expense.shares != null ? expense : null;
+        }
+
+        private static final String[] FIELDS = {"payer", "total", "participants", "splitType", "splitDetails"};
+
+        // Read one expense object field by field; unknown fields are skipped and null counts as missing
+        static Expense parseExpense(JsonReader reader) throws IOException {
+            String payer = null;
+            double total = 0;
+            List<String> participants = new ArrayList<>();
+            String splitType = null;
+            Map<String, Double> splitDetails = new HashMap<>();
+
+            reader.beginObject();
+            while (reader.hasNextField()) {
+                int field = reader.nextName(FIELDS);
+                if (field == -1) {
+                    reader.skipValue();
+                } else if (reader.nextNull()) {
+                    // Treat as missing
+                } else if (field == 0) {
+                    payer = reader.nextString().trim();
+                } else if (field == 1) {
+                    total = reader.nextDouble();
+                } else if (field == 2) {
+                    reader.beginArray();
+                    while (reader.hasNextElement()) {
+                        String p = reader.nextString().trim();
+                        if (!p.isEmpty()) {
+                            participants.add(p);
+                        }
+                    }
+                } else if (field == 3) {
+                    splitType = reader.nextString().trim();
+                } else {
+                    reader.beginObject();
+                    while (reader.hasNextField()) {
+                        String name = reader.nextName().trim();
+                        splitDetails.put(name, reader.nextDouble());
+                    }
+                }
+            }
+            return new Expense(payer, total, participants, splitType, splitDetails);
+        }
+
+        static boolean isValid(Expense expense) {
+            return expense.payer != null && !expense.payer.isEmpty() && !expense.participants.isEmpty()
+                    && expense.total > 0 && expense.total <= MAX_AMOUNT && validNames(expense) && validAmounts(expense);
+        }
+
+        // Split values are amounts, percentages or share counts; none of them needs to be larger than a total
+        private static boolean validAmounts(Expense expense) {
+            for (double value : expense.splitDetails.values()) {
+                if (!Double.isFinite(value) || Math.abs(value) > MAX_AMOUNT) return false;
+            }
+            return true;
+        }
+
+        private static boolean validNames(Expense expense) {
+            if (expense.payer.length() > MAX_NAME_LENGTH) return false;
+            for (String participant : expense.participants) {
+                if (participant.length() > MAX_NAME_LENGTH) return false;
+            }
+            for (String name : expense.splitDetails.keySet()) {
+                if (name.length() > MAX_NAME_LENGTH) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Split the total into per-person cents. Weighted splits use largest-remainder
+         * rounding, so the shares always add up to the total to the cent. Throws
+         * IllegalArgumentException with a user-facing message for invalid input.
+         */
+        static Shares calculateShares(List<String> participants, String splitType, Map<String, Double> splitDetails, double total) {
+            long totalCents = Math.round(total * 100);
+
+            // Participants first, in input order, then anyone only named in the split details
+            LinkedHashSet<String> people = new LinkedHashSet<>(participants);
+            if (!"equal".equals(splitType)) {
+                people.addAll(splitDetails.keySet());
+            }
+            String[] names = people.toArray(new String[0]);
+            long[] cents;
+
+            if ("equal".equals(splitType)) {
+                double[] weights = new double[names.length];
+                Arrays.fill(weights, 1);
+                cents = apportion(totalCents, weights);
+            } else if ("exact".equals(splitType)) {
+                cents = new long[names.length];
+                long sum = 0;
+                for (int i = 0; i < names.length; i++) {
+                    cents[i] = Math.round(splitDetails.getOrDefault(names[i], 0.0) * 100);
+                    if (cents[i] < 0) throw new IllegalArgumentException("Split values must not be negative");
+                    sum += cents[i];
+                }
+                if (sum != totalCents) {
+                    throw new IllegalArgumentException("Sum of exact amounts must equal total");
+                }
+            } else if ("percentage".equals(splitType)) {
+                double[] weights = weights(names, splitDetails);
+                double sumPerc = 0;
+                for (double w : weights) {
+                    sumPerc += w;
+                }
+                if (Math.abs(sumPerc - 100) > 0.01) {
+                    throw new IllegalArgumentException("Sum of percentages must be 100");
+                }
+                cents = apportion(totalCents, weights);
+            } else if ("shares".equals(splitType)) {
+                double[] weights = weights(names, splitDetails);
+                double totalShares = 0;
+                for (double w : weights) {
+                    totalShares += w;
+                }
+                if (totalShares <= 0) {
+                    throw new IllegalArgumentException("Sum of shares must be positive");
+                }
+                cents = apportion(totalCents, weights);
+            } else {
+                throw new IllegalArgumentException("Invalid split type");
+            }
+            return new Shares(names, cents);
+        }
+
+        private static double[] weights(String[] names, Map<String, Double> splitDetails) {
+            double[] weights = new double[names.length];
+            for (int i = 0; i < names.length; i++) {
+                weights[i] = splitDetails.getOrDefault(names[i], 0.0);
+                if (weights[i] < 0) throw new IllegalArgumentException("Split values must not be negative");
+            }
+            return weights;
+        }
+
+        // Largest-remainder method: floor every quota, then hand the leftover cents to the largest fractions
+        static long[] apportion(long totalCents, double[] weights) {
+            double sum = 0;
+            for (double w : weights) {
+                sum += w;
+            }
+            long[] cents = new long[weights.length];
+            double[] fractions = new double[weights.length];
+            long assigned = 0;
+            for (int i = 0; i < weights.length; i++) {
+                double quota = totalCents * (weights[i] / sum);
+                cents[i] = (long) Math.floor(quota);
+                fractions[i] = quota - cents[i];
+                assigned += cents[i];
+            }
+            Integer[] order = new Integer[weights.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (x, y) -> Double.compare(fractions[y], fractions[x])); // stable, so ties keep input order
+            // Floating point can leave the remainder a cent off in either direction; the loop covers both
+            long left = totalCents - assigned;
+            for (int i = 0; left != 0; i = (i + 1) % order.length) {
+                long step = left > 0 ? 1 : -1;
+                cents[order[i]] += step;
+                left -= step;
+            }
+            return cents;
+        }
+    }
+
+    // Bulk import: one expense JSON object per line (NDJSON), applied to the ledger in batches
+    static class AddExpensesHandler extends GroupHandler {
+        private static final int BATCH_SIZE = 1000;
+        private static final int MAX_REPORTED_ERRORS = 1000;
+
+        // Counts and reported errors for one import
+        private static class Summary {
+            int accepted;
+            int failed;
+            final List<Map<String, Object>> errors = new ArrayList<>();
+
+            void fail(int line, Object error) {
+                failed++;
+                if (errors.size() < MAX_REPORTED_ERRORS) {
+                    Map<String, Object> lineError = new HashMap<>();
+                    lineError.put("line", line);
+                    lineError.put("error", error);
+                    errors.add(lineError);
+                }
+            }
+        }
+
+        @Override
+        void handle(HttpExchange exchange, String group) throws IOException {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Ledger ledger = groups.get(group);
+            JsonReader reader = new JsonReader(exchange.getRequestBody(), 65536);
+            reader.setLineMode(true);
+            List<Expense> batch = new ArrayList<>(BATCH_SIZE);
+            List<Integer> lines = new ArrayList<>(BATCH_SIZE);
+            Summary summary = new Summary();
+            int truncatedAt = 0;
+
+            try {
+                while (!reader.atEnd()) {
+                    int line = reader.line();
+                    Object error = null;
+                    try {
+                        Expense expense = AddExpenseHandler.parseExpense(reader);
+                        if (!reader.skipLine()) throw reader.error("Expected a newline after the JSON object");
+                        if (!AddExpenseHandler.isValid(expense)) {
+                            error = "Invalid input data";
+                        } else {
+                            expense.shares = AddExpenseHandler.calculateShares(expense.participants, expense.splitType, expense.splitDetails, expense.total);
+                            batch.add(expense);
+                            lines.add(line);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        error = e.getMessage();
+                    } catch (JsonReader.MalformedJsonException e) {
+                        error = "Invalid JSON: " + e.getMessage();
+                        reader.skipToNextLine();
+                    }
+
+                    if (error != null) summary.fail(line, error);
+                    if (batch.size() == BATCH_SIZE) record(ledger, batch, lines, summary);
+                }
+            } catch (Admission.BodyTooLargeException e) {
+                // Lines before this one are already applied, so report them rather than a bare 413
+                truncatedAt = reader.line();
+                admission.tooLarge.increment();
+            }
+            record(ledger, batch, lines, summary);
+
+            // Lines not listed in "errors" were applied
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", summary.failed == 0 && truncatedAt == 0);
+            response.put("accepted", summary.accepted);
+            response.put("failed", summary.failed);
+            response.put("errors", summary.errors);
+            if (truncatedAt != 0) {
+                response.put("error", "Request body too large, stopped reading at line " + truncatedAt
+                        + "; lines before it were processed");
+                sendJson(exchange, 413, response);
+                return;
+            }
+
+            sendJson(exchange, response);
+        }
+
+        // Record and clear a batch; an expense that would overflow a balance fails its line only
+        private static void record(Ledger ledger, List<Expense> batch, List<Integer> lines, Summary summary) throws IOException {
+            int next = 0;
+            while (next < batch.size()) {
+                int recorded = ledger.recordAll(batch.subList(next, batch.size()));
+                summary.accepted += recorded;
+                next += recorded;
+                if (next < batch.size()) {
+                    summary.fail(lines.get(next), Ledger.overflow().getMessage());
+                    next++;
+                }
+            }
+            batch.clear();
+            lines.clear();
+        }
+    }
+
+    static class BalancesHandler extends GroupHandler {
+        @Override
+        void handle(HttpExchange exchange, String group) throws IOException {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Ledger ledger = ledgerToRead(group);
+            String path = exchange.getRequestURI().getRawPath();
+            int sub = path.indexOf("/balances/");
+            if (sub >= 0) {
+                sendBreakdown(exchange, ledger, path.substring(sub + "/balances/".length()));
+                return;
+            }
+            String asOf = queryParams(exchange).get("asOf");
+            if (asOf != null) {
+                sendBalancesAsOf(exchange, ledger, asOf);
+                return;
+            }
+            if (notModified(exchange, ledger)) return;
+            sendView(exchange, ledger.view("balances", balances -> JsonWriter.toBytes(out -> writeBalances(out, balances))));
+        }
+
+        // /balances/{person}/breakdown: the person's balance split by counterparty
+        private void sendBreakdown(HttpExchange exchange, Ledger ledger, String rest) throws IOException {
+            int slash = rest.indexOf('/');
+            Ledger.Breakdown breakdown = null;
+            String person = null;
+            if (slash > 0 && rest.substring(slash).equals("/breakdown")) {
+                person = URLDecoder.decode(rest.substring(0, slash), StandardCharsets.UTF_8);
+                breakdown = ledger.breakdown(person);
+            }
+            if (breakdown == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            JsonWriter out = JsonWriter.acquire();
+            out.beginObject()
+                    .name("person").value(person)
+                    .name("balance").valueCents(breakdown.balance)
+                    .name("counterparties");
+            writeCents(out, breakdown.counterparties);
+            out.endObject();
+            out.send(exchange, 200);
+        }
+
+        /**
+         * ?asOf= takes an expense id, an ISO-8601 instant, or a date meaning the end of that
+         * day in UTC. The response names the last expense included in "asOf".
+         */
+        private void sendBalancesAsOf(HttpExchange exchange, Ledger ledger, String asOf) throws IOException {
+            long maxId = Long.MAX_VALUE;
+            long maxCreatedAt = Long.MAX_VALUE;
+            try {
+                if (!asOf.isEmpty() && asOf.chars().allMatch(Character::isDigit)) {
+                    maxId = Long.parseLong(asOf);
+                } else if (asOf.indexOf('T') >= 0) {
+                    maxCreatedAt = Instant.parse(asOf).toEpochMilli();
+                } else {
+                    maxCreatedAt = LocalDate.parse(asOf).plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() - 1;
+                }
+            } catch (NumberFormatException | DateTimeException e) {
+                Map<String, Object> response = new HashMap<>();
+                response.put("error", "Invalid asOf");
+                sendJson(exchange, response);
+                return;
+            }
+            Ledger.AsOf result = ledger.balancesAsOf(maxId, maxCreatedAt);
+            JsonWriter out = JsonWriter.acquire();
+            out.beginObject().name("asOf").value(result.expenseId).name("balances");
+            writeCents(out, result.balances);
+            out.endObject();
+            out.send(exchange, 200);
+        }
+    }
+
+    // {"balances":{name: dollars}}
+    static void writeBalances(JsonWriter out, Map<String, Long> balances) {
+        out.beginObject().name("balances");
+        writeCents(out, balances);
+        out.endObject();
+    }
+
+    // {name: dollars}, amounts written straight from cents
+    static void writeCents(JsonWriter out, Map<String, Long> cents) {
+        out.beginObject();
+        for (Map.Entry<String, Long> entry : cents.entrySet()) {
+            out.name(entry.getKey()).valueCents(entry.getValue());
+        }
+        out.endObject();
+    }
+
+    // Suggests transfers that would settle all balances; ?strategy=greedy|exact|auto (default auto)
+    static class SettlementsHandler extends GroupHandler {
+        private static final Set<String> STRATEGIES = new HashSet<>(Arrays.asList("auto", "greedy", "exact"));
+
+        @Override
+        void handle(HttpExchange exchange, String group) throws IOException {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String strategy = queryParams(exchange).getOrDefault("strategy", "auto");
+            if (!STRATEGIES.contains(strategy)) {
+                // Checked up front so that arbitrary strategy values never become cache keys
+                Map<String, Object> response = new HashMap<>();
+                response.put("error", "Invalid strategy");
+                sendJson(exchange, response);
+                return;
+            }
+            Ledger ledger = ledgerToRead(group);
+            if (notModified(exchange, ledger)) return;
+            sendView(exchange, ledger.view("settlements:" + strategy, balances -> {
+                List<Settlements.Transfer> transfers;
+                try {
+                    transfers = Settlements.compute(balances, strategy, EXACT_SETTLEMENT_LIMIT);
+                } catch (IllegalArgumentException e) {
+                    Map<String, Object> response = new HashMap<>();
+                    response.put("error", e.getMessage());
+                    return JsonWriter.toBytes(response);
+                }
+                return JsonWriter.toBytes(out -> {
+                    out.beginObject().name("settlements").beginArray();
+                    for (Settlements.Transfer t : transfers) {
+                        out.beginObject()
+                                .name("from").value(t.from)
+                                .name("to").value(t.to)
+                                .name("amount").valueCents(t.cents)
+                                .endObject();
+                    }
+                    out.endArray().endObject();
+                });
+            }));
+        }
+    }
+
+    // Answers 304 when the client already has the current version of this ledger's views
+    static boolean notModified(HttpExchange exchange, Ledger ledger) throws IOException {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null) return false;
+        String etag = ledger.etag();
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals(etag) || tag.equals("W/" + etag) || tag.equals("*")) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void sendView(HttpExchange exchange, Ledger.View view) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("ETag", view.etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, view.body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(view.body);
+        os.close();
+    }
+
+    /**
+     * Lists expenses in id order. With ?limit=N it returns one page starting after the id
+     * given in ?after= plus a "nextAfter" cursor when more may follow. Without a limit the
+     * whole history is streamed with chunked encoding, one expense at a time. ?person=
+     * restricts the list to expenses that person paid for or shares in, read from the
+     * ledger's per-person index.
+     *
+     * /expenses/{id} addresses one expense: GET returns it, PUT replaces it with the
+     * expense in the body (keeping its id and creation time) and DELETE removes it. Both
+     * edits only reverse and re-apply that expense's own shares.
+     */
+    static class ExpensesHandler extends GroupHandler {
+        private static final int MAX_PAGE_SIZE = 1000;
+        private static final int STREAM_CHUNK_SIZE = 32 * 1024;
+
+        @Override
+        void handle(HttpExchange exchange, String group) throws IOException {
+            String path = exchange.getRequestURI().getRawPath();
+            int sub = path.indexOf("/expenses/");
+            if (sub >= 0) {
+                handleItem(exchange, group, path.substring(sub + "/expenses/".length()));
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Map<String, String> params = queryParams(exchange);
+            long after;
+            int limit;
+            try {
+                after = Long.parseLong(params.getOrDefault("after", "0"));
+                limit = Integer.parseInt(params.getOrDefault("limit", "0"));
+            } catch (NumberFormatException e) {
+                Map<String, Object> response = new HashMap<>();
+                response.put("error", "Invalid after or limit");
+                sendJson(exchange, response);
+                return;
+            }
+            String person = params.get("person");
+            Ledger ledger = ledgerToRead(group);
+            Collection<Expense> expenses = person != null ? ledger.expensesAfter(person, after) : ledger.expensesAfter(after);
+
+            if (limit <= 0) {
+                streamExpenses(exchange, expenses);
+                return;
+            }
+
+            limit = Math.min(limit, MAX_PAGE_SIZE);
+            List<Expense> page = new ArrayList<>(limit);
+            for (Expense e : expenses) {
+                if (page.size() == limit) break;
+                page.add(e);
+            }
+            Map<String, Object> response = new HashMap<>();
+            response.put("expenses", page);
+            if (page.size() == limit) {
+                response.put("nextAfter", page.get(page.size() - 1).id);
+            }
+            sendJson(exchange, response);
+        }
+
+        private void handleItem(HttpExchange exchange, String group, String rest) throws IOException {
+            long id;
+            try {
+                id = Long.parseLong(rest);
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            // Edits do not create the group either: without it there is no such expense
+            Ledger ledger = groups.find(group);
+            Map<String, Object> response = new HashMap<>();
+            boolean found;
+            switch (exchange.getRequestMethod()) {
+                case "GET":
+                    Expense expense = ledger != null ? ledger.expense(id) : null;
+                    found = expense != null;
+                    response.put("expense", expense);
+                    break;
+                case "DELETE":
+                    found = ledger != null && ledger.remove(id);
+                    response.put("success", true);
+                    break;
+                case "PUT":
+                    Expense updated = AddExpenseHandler.readExpense(exchange.getRequestBody(), response);
+                    if (updated == null) {
+                        sendJson(exchange, response);
+                        return;
+                    }
+                    updated.id = id;
+                    try {
+                        found = ledger != null && ledger.replace(updated);
+                    } catch (IllegalArgumentException e) {
+                        response.put("error", e.getMessage());
+                        sendJson(exchange, response);
+                        return;
+                    }
+                    response.put("success", true);
+                    response.put("expense", updated);
+                    break;
+                default:
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+            }
+            if (!found) {
+                sendError(exchange, 404, "No such expense");
+                return;
+            }
+            sendJson(exchange, response);
+        }
+
+        private void streamExpenses(HttpExchange exchange, Collection<Expense> expenses) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0); // chunked
+            JsonWriter out = JsonWriter.acquire();
+            try (OutputStream os = exchange.getResponseBody()) {
+                out.beginObject().name("expenses").beginArray();
+                for (Expense e : expenses) {
+                    out.value(e);
+                    if (out.size() >= STREAM_CHUNK_SIZE) out.flushTo(os);
+                }
+                out.endArray().endObject();
+                out.flushTo(os);
+            } finally {
+                out.release();
+            }
+        }
+    }
+
+    static Map<String, String> queryParams(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    static void sendJson(HttpExchange exchange, Map<String, Object> response) throws IOException {
+        sendJson(exchange, 200, response);
+    }
+
+    static void sendJson(HttpExchange exchange, int status, Map<String, Object> response) throws IOException {
+        JsonWriter out = JsonWriter.acquire();
+        out.value(response);
+        out.send(exchange, status);
+    }
+
+    static void sendJson(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    // {"error": message} with an HTTP error status, for clients that need to tell failures apart
+    static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        JsonWriter out = JsonWriter.acquire();
+        out.beginObject().name("error").value(message).endObject();
+        out.send(exchange, status);
+    }
+
+    // Streams the ledger's changes as server-sent events; see EventFeed for the event types
+    static class EventsHandler extends GroupHandler {
+        @Override
+        void handle(HttpExchange exchange, String group) throws IOException {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Ledger ledger = groups.find(group);
+            if (ledger == null) {
+                sendError(exchange, 404, "No such group");
+                return;
+            }
+            String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            if (!ledger.events().subscribe(exchange, lastEventId)) {
+                exchange.getResponseHeaders().set("Retry-After", "10");
+                exchange.sendResponseHeaders(503, -1);
+            }
+        }
+    }
+
+    static class ClearHandler extends GroupHandler {
+        @Override
+        void handle(HttpExchange exchange, String group) throws IOException {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            // Clear expenses and balances; a group that does not exist is already clear
+            Ledger ledger = groups.find(group);
+            if (ledger != null) ledger.clear();
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+
+            sendJson(exchange, response);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package fairshare;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small fixed-size JDBC connection pool. Connections are opened lazily, checked on
+ * borrow and replaced when the driver reports them as broken.
+ */
+class ConnectionPool implements Closeable {
+    private static final long BORROW_TIMEOUT_SECONDS = 10;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+    private final Semaphore available; // connections that may still be borrowed
+
+    ConnectionPool(String url, String user, String password, int size) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.available = new Semaphore(size);
+    }
+
+    Connection borrow() throws SQLException {
+        try {
+            if (!available.tryAcquire(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLTransientConnectionException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+        try {
+            Connection conn;
+            while ((conn = idle.poll()) != null) {
+                if (conn.isValid(1)) return conn;
+                closeQuietly(conn);
+            }
+            return DriverManager.getConnection(url, user, password);
+        } catch (SQLException e) {
+            available.release();
+            throw e;
+        }
+    }
+
+    // Return a connection; broken ones are closed instead of going back to the pool
+    void release(Connection conn, boolean broken) {
+        if (broken) {
+            closeQuietly(conn);
+        } else {
+            idle.add(conn);
+        }
+        available.release();
+    }
+
+    @Override
+    public void close() {
+        Connection conn;
+        while ((conn = idle.poll()) != null) {
+            closeQuietly(conn);
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Already unusable
+        }
+    }
+}
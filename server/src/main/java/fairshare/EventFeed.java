@@ -0,0 +1,331 @@
+package fairshare;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Server-sent event stream of one ledger's changes, served at /events.
+ *
+ * The ledger publishes every change once. The event is rendered to a complete SSE frame
+ * and kept in a bounded ring of recent events, then handed to each subscriber's bounded
+ * buffer. A subscriber whose client falls behind far enough to fill that buffer loses
+ * the buffered events and gets one "reset" event with the full balances instead, so a
+ * slow consumer costs a fixed amount of memory and never holds up the others.
+ *
+ * Event ids are "<ledger epoch>-<sequence>". A client that reconnects with Last-Event-ID
+ * gets the events it missed from the ring when they are all still there, and a reset
+ * otherwise, for example after a restart.
+ *
+ * Events:
+ *   reset    {"balances":{...}}, the full state; also the first event of a new stream
+ *   expense  {"expense":{...},"deltas":{person: dollars}}, one recorded expense
+ *   update   {"expense":{...},"deltas":{...}}, an expense was replaced; deltas are the net change
+ *   remove   {"id":n,"deltas":{...}}, an expense was removed
+ *   clear    {}, the ledger was cleared
+ */
+class EventFeed {
+    // Recent events kept for Last-Event-ID resume, per ledger
+    private static final int HISTORY_SIZE = Integer.getInteger("fairshare.eventHistory", 1024);
+    // Events a subscriber may have waiting before they are coalesced into a reset
+    private static final int BUFFER_SIZE = Integer.getInteger("fairshare.eventBuffer", 256);
+    // Open streams across all ledgers; more are refused with 503
+    private static final int MAX_SUBSCRIBERS = Integer.getInteger("fairshare.maxSubscribers", 1000);
+    private static final long HEARTBEAT_SECONDS = 15;
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    // Writes block on slow clients, so each subscriber being written to holds a thread
+    private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "event-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Set<Subscriber> all = ConcurrentHashMap.newKeySet();
+    private static final LongAdder resets = new LongAdder();
+
+    static {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "event-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        // Keeps proxies from timing out idle streams and finds clients that have gone away
+        heartbeat.scheduleWithFixedDelay(() -> {
+            for (Subscriber s : all) {
+                s.offer(new Event(-1, HEARTBEAT));
+            }
+        }, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    static class Event {
+        final long seq; // -1 for heartbeats
+        final byte[] frame;
+
+        Event(long seq, byte[] frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    private final String epoch;
+    private final Supplier<Event> reset;
+
+    // Guarded by this
+    private final Event[] history = new Event[HISTORY_SIZE];
+    private long lastSeq;
+    private final Set<Subscriber> subscribers = new HashSet<>();
+    private boolean closed;
+
+    /**
+     * The reset supplier must return the full state together with lastSeq() read at the
+     * same point, i.e. with no publish in between.
+     */
+    EventFeed(String epoch, Supplier<Event> reset) {
+        this.epoch = epoch;
+        this.reset = reset;
+    }
+
+    static int subscriberCount() {
+        return all.size();
+    }
+
+    static long resetCount() {
+        return resets.sum();
+    }
+
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    void expenseAdded(App.Expense expense) {
+        Map<String, Long> deltas = new HashMap<>();
+        expense.addDeltas(deltas, 1);
+        publish("expense", JsonWriter.toBytes(out -> {
+            out.beginObject().name("expense").value(expense).name("deltas");
+            App.writeCents(out, deltas);
+            out.endObject();
+        }));
+    }
+
+    void expenseReplaced(App.Expense old, App.Expense updated) {
+        Map<String, Long> deltas = new HashMap<>();
+        old.addDeltas(deltas, -1);
+        updated.addDeltas(deltas, 1);
+        publish("update", JsonWriter.toBytes(out -> {
+            out.beginObject().name("expense").value(updated).name("deltas");
+            App.writeCents(out, deltas);
+            out.endObject();
+        }));
+    }
+
+    void expenseRemoved(App.Expense removed) {
+        Map<String, Long> deltas = new HashMap<>();
+        removed.addDeltas(deltas, -1);
+        publish("remove", JsonWriter.toBytes(out -> {
+            out.beginObject().name("id").value(removed.id).name("deltas");
+            App.writeCents(out, deltas);
+            out.endObject();
+        }));
+    }
+
+    void cleared() {
+        publish("clear", "{}".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // A reset event for the given balances at sequence seq, which is not added to the history
+    Event resetEvent(long seq, Map<String, Long> balances) {
+        return new Event(seq, frame(seq, "reset", JsonWriter.toBytes(out -> App.writeBalances(out, balances))));
+    }
+
+    private void publish(String type, byte[] data) {
+        synchronized (this) {
+            if (closed) return;
+            long seq = ++lastSeq;
+            Event event = new Event(seq, frame(seq, type, data));
+            history[(int) (seq % HISTORY_SIZE)] = event;
+            for (Subscriber s : subscribers) {
+                s.offer(event);
+            }
+        }
+    }
+
+    private byte[] frame(long seq, String type, byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 64);
+        byte[] header = ("id: " + epoch + "-" + seq + "\nevent: " + type + "\ndata: ").getBytes(StandardCharsets.US_ASCII);
+        out.write(header, 0, header.length);
+        out.write(data, 0, data.length); // JSON from JsonWriter never contains a raw newline
+        out.write('\n');
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+    /**
+     * Send the stream's headers and start streaming to the exchange. Returns false without
+     * responding if there are too many subscribers already. Otherwise the handler may
+     * return straight away; the exchange is closed when the client goes away or the feed
+     * is closed.
+     */
+    boolean subscribe(HttpExchange exchange, String lastEventId) throws IOException {
+        if (all.size() >= MAX_SUBSCRIBERS) return false; // checked loosely, it only guards memory
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        Subscriber s = new Subscriber(exchange);
+        synchronized (this) {
+            if (closed) {
+                // The ledger was evicted meanwhile; the client reconnects to its replacement
+                exchange.close();
+                return true;
+            }
+            long resumeFrom = resumePoint(lastEventId);
+            synchronized (s) {
+                if (resumeFrom < 0) {
+                    s.needsReset = true;
+                } else {
+                    s.lastSent = resumeFrom;
+                    for (long seq = resumeFrom + 1; seq <= lastSeq; seq++) {
+                        s.offer(history[(int) (seq % HISTORY_SIZE)]);
+                    }
+                }
+                s.schedule();
+            }
+            subscribers.add(s);
+            all.add(s);
+        }
+        return true;
+    }
+
+    // The sequence to resume after, or -1 if the missed events are not all in the history
+    private long resumePoint(String lastEventId) {
+        if (lastEventId == null) return -1;
+        int dash = lastEventId.lastIndexOf('-');
+        if (dash < 0 || !lastEventId.substring(0, dash).equals(epoch)) return -1;
+        long seq;
+        try {
+            seq = Long.parseLong(lastEventId.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (seq > lastSeq || seq < lastSeq - HISTORY_SIZE) return -1;
+        return seq;
+    }
+
+    // Disconnect every subscriber; their clients reconnect to whichever ledger replaces this one
+    void close() {
+        List<Subscriber> open;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<>(subscribers);
+        }
+        for (Subscriber s : open) {
+            s.close();
+        }
+    }
+
+    private synchronized void remove(Subscriber s) {
+        subscribers.remove(s);
+        all.remove(s);
+    }
+
+    private class Subscriber implements Runnable {
+        final HttpExchange exchange;
+        final OutputStream out;
+
+        // Guarded by this
+        final ArrayDeque<Event> pending = new ArrayDeque<>();
+        boolean needsReset;
+        boolean scheduled;
+        boolean closed;
+
+        // Only touched by the one writer task running at a time
+        long lastSent; // events up to this sequence are already covered
+
+        Subscriber(HttpExchange exchange) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+        }
+
+        synchronized void offer(Event event) {
+            if (closed) return;
+            if (needsReset) {
+                if (event.seq < 0) schedule(); // a reset is on its way anyway
+                return;
+            }
+            if (pending.size() >= BUFFER_SIZE) {
+                // Too far behind: drop what is queued and catch up with one reset
+                pending.clear();
+                needsReset = true;
+                resets.increment();
+            } else {
+                pending.add(event);
+            }
+            schedule();
+        }
+
+        // Caller holds this subscriber's monitor
+        void schedule() {
+            if (scheduled || closed) return;
+            scheduled = true;
+            writers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Event event;
+                    synchronized (this) {
+                        if (needsReset) {
+                            needsReset = false;
+                            event = null;
+                        } else {
+                            event = pending.poll();
+                            if (event == null) {
+                                scheduled = false;
+                                return;
+                            }
+                        }
+                    }
+                    // No I/O under the monitor, or a slow client would stall publish()
+                    if (event == null) {
+                        event = reset.get(); // briefly locks the ledger
+                    } else if (event.seq >= 0 && event.seq <= lastSent) {
+                        continue; // already covered by a reset
+                    }
+                    out.write(event.frame);
+                    if (event.seq >= 0) lastSent = event.seq;
+                    boolean idle;
+                    synchronized (this) {
+                        idle = pending.isEmpty() && !needsReset;
+                    }
+                    if (idle) out.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                pending.clear();
+            }
+            remove(this);
+            exchange.close();
+        }
+    }
+}
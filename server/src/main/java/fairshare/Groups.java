@@ -0,0 +1,196 @@
+package fairshare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of per-group ledgers. Each group is its own shard with its own lock,
+ * so busy groups never contend with each other and /clear only affects one group.
+ * With a LedgerStore factory each group persists through its own store and is
+ * reloaded from it on first use.
+ *
+ * Looking up a loaded group is a plain map read. The first request for a group
+ * installs a shard whose ledger is still loading and loads it outside the map's
+ * locks; requests arriving meanwhile wait for that load only. Eviction marks a shard
+ * before removing it and backs off if it was used in the meantime, and a request
+ * that finds its shard marked looks the group up again. A group whose store has failed
+ * is dropped the same way and reloaded from what the store did persist.
+ */
+class Groups {
+    static final String DEFAULT_GROUP = "default";
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private static class Shard {
+        final CompletableFuture<Ledger> ledger = new CompletableFuture<>();
+        volatile long lastAccess = System.currentTimeMillis();
+        volatile boolean evicted;
+
+        Ledger await() throws IOException {
+            try {
+                return ledger.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw e;
+            }
+        }
+
+        // The ledger if it has finished loading, else null
+        Ledger loaded() {
+            return ledger.isDone() && !ledger.isCompletedExceptionally() ? ledger.join() : null;
+        }
+    }
+
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+    private final LedgerStore.Factory stores; // null keeps every group in memory only
+
+    Groups(LedgerStore.Factory stores) {
+        this.stores = stores;
+    }
+
+    static boolean isValidId(String id) {
+        return id != null && VALID_ID.matcher(id).matches();
+    }
+
+    // Get the ledger for a group, loading or creating it on first use
+    Ledger get(String id) throws IOException {
+        while (true) {
+            Shard shard = shards.get(id);
+            if (shard == null) {
+                Shard created = new Shard();
+                shard = shards.putIfAbsent(id, created);
+                if (shard == null) {
+                    shard = created;
+                    load(id, created);
+                }
+            }
+            Ledger ledger = shard.await();
+            if (ledger.failed()) {
+                discard(id, shard);
+                continue;
+            }
+            // Written before evicted is read, and eviction does the reverse, so one of the two sees the other
+            shard.lastAccess = System.currentTimeMillis();
+            if (!shard.evicted) return ledger;
+        }
+    }
+
+    // Drop a shard whose ledger can no longer be trusted, so that the next request reloads it
+    private void discard(String id, Shard shard) {
+        shards.computeIfPresent(id, (k, current) -> {
+            if (current != shard) return current; // already replaced
+            shard.evicted = true;
+            System.out.println("Reloading group " + id + " after a store failure");
+            closeQuietly(shard.loaded());
+            return null;
+        });
+    }
+
+    /**
+     * The ledger of a group that has been written to before, loading it if needed; null for
+     * any other group, which is not created. Reads go through here so that requests for
+     * made-up group ids cost neither memory nor storage. The default group always exists.
+     */
+    Ledger find(String id) throws IOException {
+        if (!shards.containsKey(id) && !DEFAULT_GROUP.equals(id) && (stores == null || !stores.exists(id))) {
+            return null;
+        }
+        return get(id);
+    }
+
+    private void load(String id, Shard shard) {
+        try {
+            shard.ledger.complete(stores == null ? new Ledger() : Ledger.open(stores.open(id)));
+        } catch (IOException e) {
+            // Let the next request try again
+            shards.remove(id, shard);
+            shard.ledger.completeExceptionally(e instanceof LedgerStore.UnavailableException ? e
+                    : new LedgerStore.UnavailableException("Failed to load group " + id + ": " + e.getMessage(), e));
+        } catch (RuntimeException e) {
+            shards.remove(id, shard);
+            shard.ledger.completeExceptionally(e);
+        }
+    }
+
+    int size() {
+        return shards.size();
+    }
+
+    // Ledgers currently loaded, without counting as an access
+    List<Ledger> ledgers() {
+        List<Ledger> result = new ArrayList<>(shards.size());
+        for (Shard shard : shards.values()) {
+            Ledger ledger = shard.loaded();
+            if (ledger != null) result.add(ledger);
+        }
+        return result;
+    }
+
+    // Drop groups that have been idle for longer than the given time
+    int evictIdle(long idleMillis) {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        int[] evicted = {0};
+        for (String id : shards.keySet()) {
+            if (DEFAULT_GROUP.equals(id)) continue;
+            // Closing inside the bin lock makes a reload of the same group wait until the store is closed
+            shards.computeIfPresent(id, (k, shard) -> {
+                Ledger ledger = shard.loaded();
+                // Memory-only ledgers cannot be reloaded, so only groups without data can be dropped
+                if (ledger == null || shard.lastAccess >= cutoff || (stores == null && !ledger.isEmpty())) {
+                    return shard;
+                }
+                shard.evicted = true;
+                if (shard.lastAccess >= cutoff) {
+                    shard.evicted = false; // used while being marked
+                    return shard;
+                }
+                closeQuietly(ledger);
+                evicted[0]++;
+                return null;
+            });
+        }
+        return evicted[0];
+    }
+
+    void closeAll() {
+        for (Shard shard : shards.values()) {
+            Ledger ledger = shard.loaded();
+            if (ledger != null) closeQuietly(ledger);
+        }
+        if (stores != null) {
+            try {
+                stores.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close ledger store: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void closeQuietly(Ledger ledger) {
+        try {
+            ledger.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close ledger: " + e.getMessage());
+        }
+    }
+
+    void startEviction(long idleMinutes) {
+        if (idleMinutes <= 0) return;
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "group-eviction");
+            t.setDaemon(true);
+            return t;
+        });
+        long idleMillis = TimeUnit.MINUTES.toMillis(idleMinutes);
+        sweeper.scheduleWithFixedDelay(() -> evictIdle(idleMillis), 1, 1, TimeUnit.MINUTES);
+    }
+}
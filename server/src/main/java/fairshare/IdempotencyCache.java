@@ -0,0 +1,178 @@
+package fairshare;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Responses to requests sent with an Idempotency-Key, so that a retried write is answered
+ * with the original response instead of being applied again.
+ *
+ * Entries live in one access-ordered LinkedHashMap under a lock; every operation is a
+ * hash lookup plus, on insert, trimming from the least recently used end. The map is
+ * bounded by entry count and by an estimate of the bytes it holds, and entries expire a
+ * fixed time after their response was stored.
+ *
+ * A key is claimed before the request runs. A second request with the same key while
+ * the first is still running is told so rather than being run too, and a request that
+ * reuses a key with a different body, told apart by its SHA-256, is refused. A claim that fails without a response
+ * is abandoned, so the client can retry it for real.
+ */
+class IdempotencyCache {
+    enum Outcome {
+        NEW,         // run the request, then complete or abandon the claim
+        REPLAY,      // answer with response()
+        IN_PROGRESS, // the first request with this key has not finished yet
+        MISMATCH     // the key was used for a different request body
+    }
+
+    // Rough per-entry cost of the map node, entry object and arrays beyond their contents
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    private static class Entry {
+        final String key;
+        final byte[] fingerprint;
+        byte[] response; // null while the first request is running
+        long expiresAt;
+
+        Entry(String key, byte[] fingerprint) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+        }
+
+        long size() {
+            return ENTRY_OVERHEAD + key.length() * 2L + fingerprint.length + (response != null ? response.length : 0);
+        }
+    }
+
+    class Claim {
+        final Outcome outcome;
+        private final Entry entry;
+
+        private Claim(Outcome outcome, Entry entry) {
+            this.outcome = outcome;
+            this.entry = entry;
+        }
+
+        byte[] response() {
+            return entry.response;
+        }
+
+        // Store the response for retries; it is dropped if the claim was evicted meanwhile
+        void complete(byte[] response) {
+            synchronized (IdempotencyCache.this) {
+                if (entries.get(entry.key) != entry) return;
+                bytes -= entry.size();
+                entry.response = response;
+                entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+                bytes += entry.size();
+                trim(System.currentTimeMillis());
+            }
+        }
+
+        void abandon() {
+            synchronized (IdempotencyCache.this) {
+                if (entries.remove(entry.key, entry)) bytes -= entry.size();
+            }
+        }
+    }
+
+    IdempotencyCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    Claim claim(String key, byte[] request) {
+        byte[] fingerprint = fingerprint(request); // outside the lock, since bodies can be large
+        synchronized (this) {
+            return claimLocked(key, fingerprint);
+        }
+    }
+
+    private Claim claimLocked(String key, byte[] fingerprint) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.response != null && entry.expiresAt <= now) {
+            entries.remove(key);
+            bytes -= entry.size();
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            entry = new Entry(key, fingerprint);
+            entries.put(key, entry);
+            bytes += entry.size();
+            trim(now);
+            return new Claim(Outcome.NEW, entry);
+        }
+        if (!MessageDigest.isEqual(entry.fingerprint, fingerprint)) return new Claim(Outcome.MISMATCH, entry);
+        if (entry.response == null) return new Claim(Outcome.IN_PROGRESS, entry);
+        hits++;
+        return new Claim(Outcome.REPLAY, entry);
+    }
+
+    // Drop expired entries and then the least recently used ones until within both limits
+    private void trim(long now) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry eldest = it.next();
+            boolean expired = eldest.response != null && eldest.expiresAt <= now;
+            if (!expired && entries.size() <= maxEntries && bytes <= maxBytes) break;
+            it.remove();
+            bytes -= eldest.size();
+            if (expired) {
+                expirations++;
+            } else {
+                evictions++;
+            }
+        }
+    }
+
+    // A checksum would let two different bodies pass for one and replay a response for a request never run
+    private static byte[] fingerprint(byte[] request) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(request);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK provides SHA-256
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized long expirations() {
+        return expirations;
+    }
+}
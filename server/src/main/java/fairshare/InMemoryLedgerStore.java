@@ -0,0 +1,78 @@
+package fairshare;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * In-process stand-in for a real store, used for tests and local runs. It keeps the
+ * change history per group so that a group reloaded after eviction gets its state back.
+ */
+class InMemoryLedgerStore implements LedgerStore {
+    private final List<Consumer<Ledger>> changes;
+
+    private InMemoryLedgerStore(List<Consumer<Ledger>> changes) {
+        this.changes = changes;
+    }
+
+    static Factory factory() {
+        Map<String, List<Consumer<Ledger>>> groups = new ConcurrentHashMap<>();
+        return new Factory() {
+            @Override
+            public LedgerStore open(String group) {
+                return new InMemoryLedgerStore(groups.computeIfAbsent(group, k -> new ArrayList<>()));
+            }
+
+            @Override
+            public boolean exists(String group) {
+                return groups.containsKey(group);
+            }
+        };
+    }
+
+    @Override
+    public void load(Ledger ledger) {
+        synchronized (changes) {
+            for (Consumer<Ledger> change : changes) {
+                change.accept(ledger);
+            }
+        }
+    }
+
+    @Override
+    public long expenseAdded(App.Expense expense) {
+        return add(ledger -> ledger.apply(expense));
+    }
+
+    @Override
+    public long expenseRemoved(App.Expense removed) {
+        return add(ledger -> ledger.applyRemove(removed.id));
+    }
+
+    @Override
+    public long expenseReplaced(App.Expense old, App.Expense updated) {
+        return add(ledger -> ledger.applyReplace(updated));
+    }
+
+    @Override
+    public long cleared() {
+        // Kept in the history rather than dropping it, so that a reload continues the id sequence
+        return add(ledger -> ledger.restore(Collections.emptyMap(), Collections.emptyList(), 0, 0));
+    }
+
+    @Override
+    public void sync(long ticket) {
+        // Nothing to wait for
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private long add(Consumer<Ledger> change) {
+        synchronized (changes) {
+            changes.add(change);
+            return changes.size();
+        }
+    }
+}
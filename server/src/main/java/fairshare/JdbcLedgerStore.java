@@ -0,0 +1,517 @@
+package fairshare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind JDBC store. Changes are queued and a single writer thread flushes them in
+ * batches: expense rows go out with addBatch/executeBatch and balance changes for the
+ * same person are summed into one upsert per batch. Requests never wait for the
+ * database unless the queue is full.
+ *
+ * The queue is bounded by reservations taken before the ledger applies a change, so once
+ * a change is in memory queueing it cannot fail. Failures the database may recover from
+ * are retried until they succeed; a batch it refuses outright is retried one change at
+ * a time, and the changes it still refuses are logged and dropped.
+ */
+class JdbcLedgerStore implements LedgerStore {
+    private final Backend backend;
+    private final String group;
+
+    private JdbcLedgerStore(Backend backend, String group) {
+        this.backend = backend;
+        this.group = group;
+    }
+
+    static Factory factory(String url, String user, String password, int poolSize, int queueSize) throws IOException {
+        Backend backend = new Backend(new ConnectionPool(url, user, password, poolSize), queueSize);
+        return new Factory() {
+            @Override
+            public LedgerStore open(String group) {
+                return new JdbcLedgerStore(backend, group);
+            }
+
+            @Override
+            public boolean exists(String group) throws IOException {
+                return backend.exists(group);
+            }
+
+            @Override
+            public void close() {
+                backend.close();
+            }
+        };
+    }
+
+    @Override
+    public void load(Ledger ledger) throws IOException {
+        // Queued writes for this group must reach the database before we read it back
+        backend.awaitWritten(group);
+        Connection conn = null;
+        boolean broken = false;
+        try {
+            conn = backend.pool.borrow();
+            Map<String, Long> balances = new HashMap<>();
+            try (PreparedStatement ps = conn.prepareStatement("SELECT person, balance_cents FROM balances WHERE group_id = ?")) {
+                ps.setString(1, group);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        balances.put(rs.getString(1), rs.getLong(2));
+                    }
+                }
+            }
+            List<App.Expense> expenses = new ArrayList<>();
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT id, payer, total, participants, splitType, splitDetails, shares, created_at FROM expenses WHERE group_id = ? ORDER BY id")) {
+                ps.setString(1, group);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        App.Expense expense = new App.Expense(rs.getString(2), rs.getDouble(3), decodeList(rs.getString(4)),
+                                rs.getString(5), decodeMap(rs.getString(6)));
+                        expense.id = rs.getLong(1);
+                        expense.shares = decodeShares(rs.getString(7));
+                        expense.createdAt = rs.getLong(8);
+                        expenses.add(expense);
+                    }
+                }
+            }
+            long lastId = 0;
+            long lastCreatedAt = 0;
+            try (PreparedStatement ps = conn.prepareStatement("SELECT last_id, last_created_at FROM sequences WHERE group_id = ?")) {
+                ps.setString(1, group);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        lastId = rs.getLong(1);
+                        lastCreatedAt = rs.getLong(2);
+                    }
+                }
+            }
+            ledger.restore(balances, expenses, lastId, lastCreatedAt);
+        } catch (SQLException e) {
+            broken = true;
+            throw new IOException("Failed to load group " + group, e);
+        } finally {
+            if (conn != null) backend.pool.release(conn, broken);
+        }
+    }
+
+    @Override
+    public long expenseAdded(App.Expense expense) {
+        Map<String, Long> deltas = new HashMap<>();
+        expense.addDeltas(deltas, 1);
+        return backend.enqueue(new Op(group, expense, deltas, 0));
+    }
+
+    @Override
+    public long expenseRemoved(App.Expense removed) {
+        Map<String, Long> deltas = new HashMap<>();
+        removed.addDeltas(deltas, -1);
+        return backend.enqueue(new Op(group, null, deltas, removed.id));
+    }
+
+    @Override
+    public long expenseReplaced(App.Expense old, App.Expense updated) {
+        Map<String, Long> deltas = new HashMap<>();
+        old.addDeltas(deltas, -1);
+        updated.addDeltas(deltas, 1);
+        return backend.enqueue(new Op(group, updated, deltas, old.id));
+    }
+
+    @Override
+    public long cleared() {
+        return backend.enqueue(new Op(group, null, null, 0));
+    }
+
+    @Override
+    public void reserve(int changes) throws IOException {
+        backend.reserve(changes);
+    }
+
+    @Override
+    public void unreserve(int changes) {
+        backend.unreserve(changes);
+    }
+
+    @Override
+    public void sync(long ticket) {
+        // Write-behind: the change is already in the queue
+    }
+
+    @Override
+    public void close() {
+        // The shared backend is closed by the factory
+    }
+
+    // A queued change: balance deltas in cents with an expense row to delete and/or insert, or a clear
+    private static class Op {
+        final String group;
+        final App.Expense expense; // row to insert, if any
+        final Map<String, Long> deltas; // null for a clear
+        final long deleteId; // row to delete first, or 0
+
+        Op(String group, App.Expense expense, Map<String, Long> deltas, long deleteId) {
+            this.group = group;
+            this.expense = expense;
+            this.deltas = deltas;
+            this.deleteId = deleteId;
+        }
+    }
+
+    private static class Backend implements Closeable {
+        private static final int BATCH_SIZE = 500;
+        private static final long RESERVE_TIMEOUT_SECONDS = 5;
+        private static final long LOAD_TIMEOUT_SECONDS = 30;
+        private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+        final ConnectionPool pool;
+        private final int capacity;
+        private final Semaphore room; // queue slots not reserved yet
+        private final BlockingQueue<Op> queue = new LinkedBlockingQueue<>(); // bounded by room
+        private final Thread writer;
+        private final Map<String, Integer> pending = new HashMap<>(); // queued ops per group, guarded by this
+        private long queued; // guarded by this
+        private volatile boolean closed;
+
+        Backend(ConnectionPool pool, int queueSize) throws IOException {
+            this.pool = pool;
+            this.capacity = queueSize;
+            this.room = new Semaphore(queueSize);
+            createTables();
+            writer = new Thread(this::run, "jdbc-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void reserve(int changes) throws IOException {
+            if (changes > capacity) {
+                throw new IOException("Cannot queue " + changes + " database writes at once, the queue holds " + capacity);
+            }
+            try {
+                if (!room.tryAcquire(changes, RESERVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new UnavailableException("Database write queue is full", null);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while queueing a database write", e);
+            }
+        }
+
+        void unreserve(int changes) {
+            room.release(changes);
+        }
+
+        // Never blocks or fails: the caller reserved room for the op before applying it
+        synchronized long enqueue(Op op) {
+            queue.add(op);
+            pending.merge(op.group, 1, Integer::sum);
+            return ++queued;
+        }
+
+        boolean exists(String group) throws IOException {
+            synchronized (this) {
+                if (pending.containsKey(group)) return true; // first writes still queued
+            }
+            Connection conn = null;
+            boolean broken = false;
+            try {
+                conn = pool.borrow();
+                try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM balances WHERE group_id = ? "
+                        + "UNION ALL SELECT 1 FROM expenses WHERE group_id = ? LIMIT 1")) {
+                    ps.setString(1, group);
+                    ps.setString(2, group);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        return rs.next();
+                    }
+                }
+            } catch (SQLException e) {
+                broken = true;
+                throw new IOException("Failed to look up group " + group, e);
+            } finally {
+                if (conn != null) pool.release(conn, broken);
+            }
+        }
+
+        // Wait until nothing queued for the group is left to write, for a while
+        synchronized void awaitWritten(String group) throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(LOAD_TIMEOUT_SECONDS);
+            try {
+                while (pending.containsKey(group)) {
+                    if (closed) throw new IOException("Database store is closed");
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) throw new IOException("Timed out waiting for queued database writes to group " + group);
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for database writes", e);
+            }
+        }
+
+        private void run() {
+            List<Op> batch = new ArrayList<>(BATCH_SIZE);
+            while (!closed || !queue.isEmpty()) {
+                try {
+                    Op first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    writeWithRetry(batch);
+                    synchronized (this) {
+                        for (Op op : batch) {
+                            pending.computeIfPresent(op.group, (k, n) -> n == 1 ? null : n - 1);
+                        }
+                        notifyAll();
+                    }
+                    room.release(batch.size());
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void writeWithRetry(List<Op> batch) throws InterruptedException {
+            long delay = 500;
+            while (true) {
+                SQLException failure;
+                Connection conn = null;
+                boolean broken = false;
+                try {
+                    conn = pool.borrow();
+                    write(conn, batch);
+                    return;
+                } catch (SQLException e) {
+                    failure = e;
+                    broken = isTransient(e);
+                } finally {
+                    if (conn != null) pool.release(conn, broken);
+                }
+                if (!isTransient(failure)) {
+                    // Find the ops the database refuses, so that they do not hold up the rest
+                    if (batch.size() == 1) {
+                        drop(batch.get(0), failure);
+                    } else {
+                        for (Op op : batch) {
+                            writeWithRetry(List.of(op));
+                        }
+                    }
+                    return;
+                }
+                if (closed) {
+                    System.out.println("Dropping " + batch.size() + " database writes on shutdown: " + failure.getMessage());
+                    return;
+                }
+                System.out.println("Database write failed, retrying in " + delay + "ms: " + failure.getMessage());
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+
+        // Failures that may go away on retry: lost connections, timeouts, deadlocks and the like
+        private static boolean isTransient(SQLException e) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof SQLTransientException || t instanceof SQLRecoverableException
+                        || t instanceof SQLNonTransientConnectionException) {
+                    return true;
+                }
+                String state = t instanceof SQLException ? ((SQLException) t).getSQLState() : null;
+                if (state != null && (state.startsWith("08") || state.startsWith("40"))) return true;
+            }
+            return false;
+        }
+
+        // The database and the ledger now disagree until the group is cleared, so say exactly what was lost
+        private static void drop(Op op, SQLException e) {
+            String change = op.deltas == null ? "clear"
+                    : op.expense != null ? "expense " + op.expense.id + (op.deleteId != 0 ? " (replacing)" : "")
+                    : "removal of expense " + op.deleteId;
+            System.out.println("Dropping database write refused for group " + op.group + ", " + change + ": " + e.getMessage());
+        }
+
+        // Write a batch in one transaction, coalescing balance deltas between clears
+        private void write(Connection conn, List<Op> batch) throws SQLException {
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO expenses (group_id, id, payer, total, participants, splitType, splitDetails, shares, created_at) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                 PreparedStatement upsert = conn.prepareStatement(
+                    "INSERT INTO balances (group_id, person, balance_cents) VALUES (?, ?, ?) "
+                            + "ON DUPLICATE KEY UPDATE balance_cents = balance_cents + VALUES(balance_cents)");
+                 PreparedStatement deleteExpense = conn.prepareStatement("DELETE FROM expenses WHERE group_id = ? AND id = ?");
+                 PreparedStatement clearExpenses = conn.prepareStatement("DELETE FROM expenses WHERE group_id = ?");
+                 PreparedStatement clearBalances = conn.prepareStatement("DELETE FROM balances WHERE group_id = ?");
+                 PreparedStatement advance = conn.prepareStatement(
+                    "INSERT INTO sequences (group_id, last_id, last_created_at) VALUES (?, ?, ?) "
+                            + "ON DUPLICATE KEY UPDATE last_id = GREATEST(last_id, VALUES(last_id)), "
+                            + "last_created_at = GREATEST(last_created_at, VALUES(last_created_at))")) {
+                Map<String, Map<String, Long>> deltas = new LinkedHashMap<>();
+                // Highest id and creation time inserted per group, kept past removals and clears
+                Map<String, long[]> sequences = new HashMap<>();
+                for (Op op : batch) {
+                    if (op.deltas == null) {
+                        flush(insert, upsert, deltas);
+                        clearExpenses.setString(1, op.group);
+                        clearExpenses.executeUpdate();
+                        clearBalances.setString(1, op.group);
+                        clearBalances.executeUpdate();
+                        continue;
+                    }
+                    if (op.deleteId != 0) {
+                        // The row may still be in the pending insert batch
+                        flush(insert, upsert, deltas);
+                        deleteExpense.setString(1, op.group);
+                        deleteExpense.setLong(2, op.deleteId);
+                        deleteExpense.executeUpdate();
+                    }
+                    if (op.expense != null) {
+                        insert.setString(1, op.group);
+                        insert.setLong(2, op.expense.id);
+                        insert.setString(3, op.expense.payer);
+                        insert.setDouble(4, op.expense.total);
+                        insert.setString(5, encodeList(op.expense.participants));
+                        insert.setString(6, op.expense.splitType);
+                        insert.setString(7, encodeMap(op.expense.splitDetails));
+                        insert.setString(8, encodeShares(op.expense.shares));
+                        insert.setLong(9, op.expense.createdAt);
+                        insert.addBatch();
+                        long[] sequence = sequences.computeIfAbsent(op.group, k -> new long[2]);
+                        sequence[0] = Math.max(sequence[0], op.expense.id);
+                        sequence[1] = Math.max(sequence[1], op.expense.createdAt);
+                    }
+                    Map<String, Long> groupDeltas = deltas.computeIfAbsent(op.group, k -> new HashMap<>());
+                    for (Map.Entry<String, Long> entry : op.deltas.entrySet()) {
+                        groupDeltas.merge(entry.getKey(), entry.getValue(), Long::sum);
+                    }
+                }
+                flush(insert, upsert, deltas);
+                for (Map.Entry<String, long[]> entry : sequences.entrySet()) {
+                    advance.setString(1, entry.getKey());
+                    advance.setLong(2, entry.getValue()[0]);
+                    advance.setLong(3, entry.getValue()[1]);
+                    advance.addBatch();
+                }
+                advance.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+
+        private static void flush(PreparedStatement insert, PreparedStatement upsert,
+                                  Map<String, Map<String, Long>> deltas) throws SQLException {
+            insert.executeBatch();
+            for (Map.Entry<String, Map<String, Long>> group : deltas.entrySet()) {
+                for (Map.Entry<String, Long> entry : group.getValue().entrySet()) {
+                    upsert.setString(1, group.getKey());
+                    upsert.setString(2, entry.getKey());
+                    upsert.setLong(3, entry.getValue());
+                    upsert.addBatch();
+                }
+            }
+            upsert.executeBatch();
+            deltas.clear();
+        }
+
+        private void createTables() throws IOException {
+            Connection conn = null;
+            boolean broken = false;
+            try {
+                conn = pool.borrow();
+                try (Statement st = conn.createStatement()) {
+                    st.executeUpdate("CREATE TABLE IF NOT EXISTS expenses (group_id VARCHAR(64) NOT NULL, id BIGINT NOT NULL, "
+                            + "payer VARCHAR(255), total DOUBLE, participants TEXT, splitType VARCHAR(50), splitDetails TEXT, "
+                            + "shares TEXT, created_at BIGINT, PRIMARY KEY (group_id, id))");
+                    st.executeUpdate("CREATE TABLE IF NOT EXISTS balances (group_id VARCHAR(64) NOT NULL, "
+                            + "person VARCHAR(255) NOT NULL, balance_cents BIGINT NOT NULL, PRIMARY KEY (group_id, person))");
+                    st.executeUpdate("CREATE TABLE IF NOT EXISTS sequences (group_id VARCHAR(64) NOT NULL PRIMARY KEY, "
+                            + "last_id BIGINT NOT NULL, last_created_at BIGINT NOT NULL)");
+                }
+            } catch (SQLException e) {
+                broken = true;
+                throw new IOException("Failed to create database tables", e);
+            } finally {
+                if (conn != null) pool.release(conn, broken);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(RESERVE_TIMEOUT_SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+            pool.close();
+        }
+    }
+
+    // Names are URL-encoded so that commas and equals signs inside them survive
+    private static String encodeList(List<String> list) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (String s : list) {
+            joiner.add(URLEncoder.encode(s, StandardCharsets.UTF_8));
+        }
+        return joiner.toString();
+    }
+
+    private static List<String> decodeList(String s) {
+        List<String> list = new ArrayList<>();
+        if (s == null || s.isEmpty()) return list;
+        for (String part : s.split(",")) {
+            list.add(URLDecoder.decode(part, StandardCharsets.UTF_8));
+        }
+        return list;
+    }
+
+    private static String encodeMap(Map<String, Double> map) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (Map.Entry<String, Double> entry : map.entrySet()) {
+            joiner.add(URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + "=" + entry.getValue());
+        }
+        return joiner.toString();
+    }
+
+    private static String encodeShares(App.Shares shares) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (int i = 0; i < shares.names.length; i++) {
+            joiner.add(URLEncoder.encode(shares.names[i], StandardCharsets.UTF_8) + "=" + shares.cents[i]);
+        }
+        return joiner.toString();
+    }
+
+    private static App.Shares decodeShares(String s) {
+        String[] parts = s == null || s.isEmpty() ? new String[0] : s.split(",");
+        String[] names = new String[parts.length];
+        long[] cents = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            names[i] = URLDecoder.decode(parts[i].substring(0, eq), StandardCharsets.UTF_8);
+            cents[i] = Long.parseLong(parts[i].substring(eq + 1));
+        }
+        return new App.Shares(names, cents);
+    }
+
+    private static Map<String, Double> decodeMap(String s) {
+        Map<String, Double> map = new HashMap<>();
+        if (s == null || s.isEmpty()) return map;
+        for (String part : s.split(",")) {
+            int eq = part.indexOf('=');
+            map.put(URLDecoder.decode(part.substring(0, eq), StandardCharsets.UTF_8), Double.parseDouble(part.substring(eq + 1)));
+        }
+        return map;
+    }
+}
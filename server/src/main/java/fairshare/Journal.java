@@ -0,0 +1,472 @@
+package fairshare;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log plus memory-mapped snapshots for one group's ledger.
+ *
+ * Records go to numbered segment files (journal-N.log), each framed as
+ * [length][crc32][type][payload]. Writers share fsyncs through group commit: whoever
+ * reaches the flush lock first writes and forces everything queued so far, and the
+ * writers queued behind it usually find their record already durable.
+ *
+ * A snapshot holds the expenses and the segment that replay starts from, so a restart
+ * maps the snapshot and replays only the segments written after it. Taking one holds the
+ * ledger's exclusive lock only to roll the segment; the expenses are streamed to the
+ * file afterwards, straight from the ledger.
+ *
+ * Snapshots and segments start with a magic number and FORMAT_VERSION; files written in
+ * a format this version cannot read are refused on load rather than misread.
+ *
+ * A failed write or fsync leaves the segment in an unknown state, so the journal stops
+ * there: that commit and every later one throws, reserve() refuses new changes before
+ * the ledger applies them, and the group is reloaded from what did reach the disk.
+ */
+class Journal implements LedgerStore {
+    static final byte EXPENSE = 1;
+    static final byte CLEAR = 3;
+    static final byte REMOVE = 4;
+    static final byte REPLACE = 5;
+
+    // Version 2: balances and shares in long cents; version 3: expense creation times;
+    // version 4: REMOVE and REPLACE records; version 5: the id sequence in snapshots;
+    // version 6: snapshots without balances, which are summed from the expenses on load.
+    // Files from version 3 on still load.
+    static final int FORMAT_VERSION = 6;
+    private static final int OLDEST_READABLE_VERSION = 3;
+
+    private static final int SNAPSHOT_MAGIC = 0x46534e50; // "FSNP"
+    private static final int SEGMENT_MAGIC = 0x46534a4c; // "FSJL"
+    private static final int SEGMENT_HEADER = 8;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final int SNAPSHOT_COUNT_OFFSET = 32; // after magic, version, replayFrom and the sequence
+
+    // Journal records between two snapshots
+    private static final long SNAPSHOT_EVERY = Long.getLong("fairshare.snapshotEvery", 10000);
+
+    private static final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ledger-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path dir;
+    private final Object flushLock = new Object();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private Ledger ledger;
+
+    // Guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended;
+    private long recordsSinceSnapshot;
+
+    // Guarded by flushLock
+    private FileChannel channel;
+    private long segment;
+    private volatile long flushed;
+    private volatile IOException failure; // set once, by the flush that failed
+
+    Journal(Path dir) {
+        this.dir = dir;
+    }
+
+    // One directory per group under dataDir, created when the group is first written to
+    static Factory factory(Path dataDir) {
+        return new Factory() {
+            @Override
+            public LedgerStore open(String group) {
+                return new Journal(dataDir.resolve(group));
+            }
+
+            @Override
+            public boolean exists(String group) {
+                return Files.isDirectory(dataDir.resolve(group));
+            }
+        };
+    }
+
+    // Load the latest snapshot and replay the segments after it
+    @Override
+    public void load(Ledger ledger) throws IOException {
+        Files.createDirectories(dir);
+        long replayFrom = loadSnapshot(dir, ledger);
+        long last = replayFrom - 1;
+        for (long seg : segments(dir)) {
+            if (seg >= replayFrom) {
+                replay(dir.resolve(segmentName(seg)), ledger);
+            }
+            last = Math.max(last, seg);
+        }
+        // Never append after a possibly torn tail; new writes always start a fresh segment
+        synchronized (flushLock) {
+            segment = last + 1;
+            channel = openSegment(segment);
+        }
+        this.ledger = ledger;
+    }
+
+    @Override
+    public long expenseAdded(App.Expense expense) {
+        return append(EXPENSE, expenseRecord(expense));
+    }
+
+    @Override
+    public long expenseRemoved(App.Expense removed) {
+        return append(REMOVE, ByteBuffer.allocate(8).putLong(removed.id).array());
+    }
+
+    @Override
+    public long expenseReplaced(App.Expense old, App.Expense updated) {
+        return append(REPLACE, expenseRecord(updated));
+    }
+
+    @Override
+    public long cleared() {
+        return append(CLEAR, new byte[0]);
+    }
+
+    @Override
+    public void reserve(int changes) throws IOException {
+        IOException failed = failure;
+        if (failed != null) throw stopped(failed);
+    }
+
+    @Override
+    public boolean failed() {
+        return failure != null;
+    }
+
+    @Override
+    public void sync(long ticket) throws IOException {
+        commit(ticket);
+        if (recordsSinceSnapshot() >= SNAPSHOT_EVERY && snapshotPending.compareAndSet(false, true)) {
+            snapshotter.execute(this::snapshot);
+        }
+    }
+
+    private void snapshot() {
+        try {
+            Ledger.State state = ledger.capture(this::roll);
+            writeSnapshot(state);
+        } catch (IOException e) {
+            System.out.println("Snapshot failed: " + e.getMessage());
+        } finally {
+            snapshotPending.set(false);
+        }
+    }
+
+    // Queue a record; returns a ticket to pass to commit()
+    synchronized long append(byte type, byte[] payload) {
+        if (failure != null) return ++appended; // its commit will throw
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        DataOutputStream out = new DataOutputStream(pending);
+        try {
+            out.writeInt(payload.length + 1);
+            out.writeInt((int) crc.getValue());
+            out.writeByte(type);
+            out.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen for an in-memory stream
+        }
+        recordsSinceSnapshot++;
+        return ++appended;
+    }
+
+    // Block until the record with the given ticket is on disk
+    void commit(long ticket) throws IOException {
+        if (flushed >= ticket) return;
+        synchronized (flushLock) {
+            if (flushed >= ticket) return; // a previous leader flushed it for us
+            flushPending();
+        }
+    }
+
+    private void flushPending() throws IOException {
+        if (failure != null) throw stopped(failure);
+        byte[] batch;
+        long batchEnd;
+        synchronized (this) {
+            batch = pending.toByteArray();
+            batchEnd = appended;
+            pending = new ByteArrayOutputStream();
+        }
+        if (batch.length > 0) {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(batch);
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // Part of the batch may be on disk; never report it, or anything after it, as durable
+                failure = e;
+                synchronized (this) {
+                    pending = new ByteArrayOutputStream();
+                }
+                throw new LedgerStore.UnavailableException("Journal write failed: " + e, e);
+            }
+        }
+        flushed = batchEnd;
+    }
+
+    private static IOException stopped(IOException failure) {
+        return new LedgerStore.UnavailableException("Journal stopped after a failed write: " + failure, failure);
+    }
+
+    synchronized long recordsSinceSnapshot() {
+        return recordsSinceSnapshot;
+    }
+
+    /**
+     * Seal the current segment and start a new one. Must be called while no records are
+     * being appended; returns the first segment that is not covered by the state at this point.
+     */
+    long roll() throws IOException {
+        synchronized (flushLock) {
+            flushPending();
+            channel.close();
+            segment++;
+            channel = openSegment(segment);
+            synchronized (this) {
+                recordsSinceSnapshot = 0;
+            }
+            return segment;
+        }
+    }
+
+    // Write a snapshot that replaces all segments before state.mark, then delete them
+    void writeSnapshot(Ledger.State state) throws IOException {
+        long replayFrom = state.mark;
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(replayFrom);
+            out.writeLong(state.lastId);
+            out.writeLong(state.lastCreatedAt);
+            out.writeInt(0); // expense count, filled in below
+            int count = 0;
+            for (App.Expense expense : state.expenses()) {
+                writeExpense(out, expense);
+                count++;
+            }
+            out.flush();
+            ByteBuffer countField = ByteBuffer.allocate(4).putInt(count);
+            countField.flip();
+            while (countField.hasRemaining()) {
+                ch.write(countField, SNAPSHOT_COUNT_OFFSET + countField.position());
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (long seg : segments(dir)) {
+            if (seg < replayFrom) {
+                Files.deleteIfExists(dir.resolve(segmentName(seg)));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (flushLock) {
+            if (channel == null) return; // closed after a failed load
+            try {
+                if (failure == null) flushPending(); // a failed journal has nothing more it can write
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    static byte[] expenseRecord(App.Expense expense) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeExpense(out, expense);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Segments are always new when opened for writing, so the header goes first
+    private FileChannel openSegment(long seg) throws IOException {
+        FileChannel ch = FileChannel.open(dir.resolve(segmentName(seg)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (ch.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER).putInt(SEGMENT_MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            while (header.hasRemaining()) {
+                ch.write(header);
+            }
+        }
+        return ch;
+    }
+
+    private static String segmentName(long seg) {
+        return "journal-" + seg + ".log";
+    }
+
+    private static List<Long> segments(Path dir) throws IOException {
+        List<Long> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "journal-*.log")) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                result.add(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    // Returns the first segment to replay
+    private static long loadSnapshot(Path dir, Ledger ledger) throws IOException {
+        Path file = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) return 0;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Corrupt snapshot: " + file);
+            }
+            int version = buf.getInt();
+            checkVersion(version, file);
+            long replayFrom = buf.getLong();
+            // Older snapshots continue after the newest expense they hold
+            long lastId = version >= 5 ? buf.getLong() : 0;
+            long lastCreatedAt = version >= 5 ? buf.getLong() : 0;
+            Map<String, Long> balances = new HashMap<>();
+            if (version < 6) {
+                int count = buf.getInt();
+                for (int i = 0; i < count; i++) {
+                    balances.put(readString(buf), buf.getLong());
+                }
+            }
+            List<App.Expense> expenses = new ArrayList<>();
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                App.Expense expense = readExpense(buf);
+                if (version >= 6) expense.addDeltas(balances, 1);
+                expenses.add(expense);
+            }
+            ledger.restore(balances, expenses, lastId, lastCreatedAt);
+            return replayFrom;
+        }
+    }
+
+    private static void replay(Path file, Ledger ledger) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buf.remaining() < SEGMENT_HEADER) return; // crashed before the header was written
+        if (buf.getInt() != SEGMENT_MAGIC) {
+            throw new IOException("Unsupported journal format: " + file);
+        }
+        checkVersion(buf.getInt(), file);
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= 8) {
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) break; // torn write at the tail
+            ByteBuffer record = buf.slice();
+            record.limit(length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) break;
+            buf.position(buf.position() + length);
+
+            byte type = record.get();
+            if (type == EXPENSE) {
+                ledger.apply(readExpense(record));
+            } else if (type == CLEAR) {
+                ledger.restore(Collections.emptyMap(), Collections.emptyList(), 0, 0);
+            } else if (type == REMOVE) {
+                ledger.applyRemove(record.getLong());
+            } else if (type == REPLACE) {
+                ledger.applyReplace(readExpense(record));
+            }
+        }
+    }
+
+    private static void checkVersion(int version, Path file) throws IOException {
+        if (version < OLDEST_READABLE_VERSION || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported journal format version " + version + ": " + file);
+        }
+    }
+
+    private static void writeExpense(DataOutputStream out, App.Expense e) throws IOException {
+        out.writeLong(e.id);
+        out.writeLong(e.createdAt);
+        writeString(out, e.payer);
+        out.writeDouble(e.total);
+        out.writeInt(e.participants.size());
+        for (String p : e.participants) {
+            writeString(out, p);
+        }
+        writeString(out, e.splitType);
+        out.writeInt(e.splitDetails.size());
+        for (Map.Entry<String, Double> entry : e.splitDetails.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeDouble(entry.getValue());
+        }
+        out.writeInt(e.shares.names.length);
+        for (int i = 0; i < e.shares.names.length; i++) {
+            writeString(out, e.shares.names[i]);
+            out.writeLong(e.shares.cents[i]);
+        }
+    }
+
+    private static App.Expense readExpense(ByteBuffer buf) {
+        long id = buf.getLong();
+        long createdAt = buf.getLong();
+        String payer = readString(buf);
+        double total = buf.getDouble();
+        int count = buf.getInt();
+        List<String> participants = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            participants.add(readString(buf));
+        }
+        String splitType = readString(buf);
+        count = buf.getInt();
+        Map<String, Double> splitDetails = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            splitDetails.put(readString(buf), buf.getDouble());
+        }
+        count = buf.getInt();
+        String[] names = new String[count];
+        long[] cents = new long[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = readString(buf);
+            cents[i] = buf.getLong();
+        }
+        App.Expense expense = new App.Expense(payer, total, participants, splitType, splitDetails);
+        expense.id = id;
+        expense.createdAt = createdAt;
+        expense.shares = new App.Shares(names, cents);
+        return expense;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,380 @@
+package fairshare;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Single-pass streaming JSON tokenizer that reads UTF-8 straight from an InputStream.
+ *
+ * Callers pull values in the order they expect them (beginObject, nextName, nextString,
+ * ...), so nothing is buffered beyond one read chunk and one reusable scratch buffer.
+ * Any deviation from the JSON grammar or from the expected type throws a
+ * MalformedJsonException that names the line and column.
+ */
+class JsonReader {
+    static class MalformedJsonException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private final StringBuilder scratch = new StringBuilder(32);
+
+    private int line = 1;
+    private long lineStart; // stream offset where the current line starts
+    private long consumed; // bytes consumed before buf[0]
+
+    // Whether the container being read still expects its first element
+    private boolean first;
+
+    // In line mode a newline ends the current value (NDJSON), so a broken record cannot swallow the next one
+    private boolean lineMode;
+
+    JsonReader(InputStream in) {
+        this(in, 8192);
+    }
+
+    JsonReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    void setLineMode(boolean lineMode) {
+        this.lineMode = lineMode;
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+        first = true;
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+        first = true;
+    }
+
+    // True if the current object or array has another element; consumes the separator
+    boolean hasNext(char close) throws IOException {
+        int c = peekNonWhitespace();
+        if (c == close) {
+            pos++;
+            first = false;
+            return false;
+        }
+        if (!first) {
+            if (c != ',') throw error("Expected ',' or '" + close + "'");
+            pos++;
+        }
+        first = false;
+        return true;
+    }
+
+    boolean hasNextField() throws IOException {
+        return hasNext('}');
+    }
+
+    boolean hasNextElement() throws IOException {
+        return hasNext(']');
+    }
+
+    /**
+     * Read a field name and its colon. Returns the index of the name in known, or -1
+     * for any other name, without allocating a String for it.
+     */
+    int nextName(String[] known) throws IOException {
+        readStringInto(scratch);
+        expect(':');
+        for (int i = 0; i < known.length; i++) {
+            if (known[i].contentEquals(scratch)) return i;
+        }
+        return -1;
+    }
+
+    String nextName() throws IOException {
+        readStringInto(scratch);
+        expect(':');
+        return scratch.toString();
+    }
+
+    String nextString() throws IOException {
+        readStringInto(scratch);
+        return scratch.toString();
+    }
+
+    double nextDouble() throws IOException {
+        int c = peekNonWhitespace();
+        if (c != '-' && (c < '0' || c > '9')) throw error("Expected a number");
+        boolean negative = false;
+        if (c == '-') {
+            negative = true;
+            pos++;
+        }
+        // Fast path: up to 15 significant digits and a small exponent are exact in a double
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean exact = true;
+        scratch.setLength(0);
+        if (negative) scratch.append('-');
+        c = peek();
+        if (c == '0') {
+            scratch.append('0');
+            pos++;
+        } else if (c >= '1' && c <= '9') {
+            while ((c = peek()) >= '0' && c <= '9') {
+                scratch.append((char) c);
+                pos++;
+                if (++digits > 15) exact = false;
+                else mantissa = mantissa * 10 + (c - '0');
+            }
+        } else {
+            throw error("Invalid number");
+        }
+        if (peek() == '.') {
+            scratch.append('.');
+            pos++;
+            if ((c = peek()) < '0' || c > '9') throw error("Invalid number");
+            while ((c = peek()) >= '0' && c <= '9') {
+                scratch.append((char) c);
+                pos++;
+                fractionDigits++;
+                if (++digits > 15) exact = false;
+                else mantissa = mantissa * 10 + (c - '0');
+            }
+        }
+        if (peek() == 'e' || peek() == 'E') {
+            exact = false;
+            scratch.append('e');
+            pos++;
+            if (peek() == '+' || peek() == '-') {
+                scratch.append((char) peek());
+                pos++;
+            }
+            if ((c = peek()) < '0' || c > '9') throw error("Invalid number");
+            while ((c = peek()) >= '0' && c <= '9') {
+                scratch.append((char) c);
+                pos++;
+            }
+        }
+        if (exact && fractionDigits < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(scratch.toString());
+    }
+
+    // True if the next value is null, which is then consumed
+    boolean nextNull() throws IOException {
+        if (peekNonWhitespace() != 'n') return false;
+        expectLiteral("null");
+        return true;
+    }
+
+    void skipValue() throws IOException {
+        int c = peekNonWhitespace();
+        switch (c) {
+            case '{':
+                beginObject();
+                while (hasNextField()) {
+                    readStringInto(scratch);
+                    expect(':');
+                    skipValue();
+                }
+                break;
+            case '[':
+                beginArray();
+                while (hasNextElement()) {
+                    skipValue();
+                }
+                break;
+            case '"':
+                readStringInto(scratch);
+                break;
+            case 't':
+                expectLiteral("true");
+                break;
+            case 'f':
+                expectLiteral("false");
+                break;
+            case 'n':
+                expectLiteral("null");
+                break;
+            default:
+                nextDouble();
+        }
+    }
+
+    // True if only whitespace is left in the stream; skips blank lines even in line mode
+    boolean atEnd() throws IOException {
+        while (true) {
+            int c = peekNonWhitespace();
+            if (c != '\n') return c == -1;
+            pos++;
+            newLine();
+        }
+    }
+
+    // Skip spaces and tabs, then consume a newline; false if something else follows on the line
+    boolean skipLine() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\t' || c == '\r') {
+            pos++;
+        }
+        if (c == '\n') {
+            pos++;
+            newLine();
+            return true;
+        }
+        return c == -1;
+    }
+
+    // Discard the rest of the current line, used to resynchronize after a bad NDJSON record
+    void skipToNextLine() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '\n') {
+                newLine();
+                return;
+            }
+        }
+    }
+
+    int line() {
+        return line;
+    }
+
+    MalformedJsonException error(String message) {
+        long offset = consumed + pos;
+        return new MalformedJsonException(message + " at line " + line + ", column " + (offset - lineStart + 1));
+    }
+
+    private void readStringInto(StringBuilder sb) throws IOException {
+        if (peekNonWhitespace() != '"') throw error("Expected a string");
+        pos++;
+        sb.setLength(0);
+        while (true) {
+            int b = read();
+            if (b == '"') return;
+            if (b == -1) throw error("Unterminated string");
+            if (b == '\\') {
+                readEscape(sb);
+            } else if (b < 0x20) {
+                throw error("Unescaped control character in string");
+            } else if (b < 0x80) {
+                sb.append((char) b);
+            } else {
+                readUtf8(sb, b);
+            }
+        }
+    }
+
+    private void readEscape(StringBuilder sb) throws IOException {
+        int c = read();
+        switch (c) {
+            case '"': sb.append('"'); break;
+            case '\\': sb.append('\\'); break;
+            case '/': sb.append('/'); break;
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int h = Character.digit(read(), 16);
+                    if (h < 0) throw error("Invalid \\u escape");
+                    value = (value << 4) | h;
+                }
+                sb.append((char) value);
+                break;
+            default:
+                throw error("Invalid escape character");
+        }
+    }
+
+    private void readUtf8(StringBuilder sb, int lead) throws IOException {
+        int extra;
+        int codePoint;
+        if ((lead & 0xE0) == 0xC0) {
+            extra = 1;
+            codePoint = lead & 0x1F;
+        } else if ((lead & 0xF0) == 0xE0) {
+            extra = 2;
+            codePoint = lead & 0x0F;
+        } else if ((lead & 0xF8) == 0xF0) {
+            extra = 3;
+            codePoint = lead & 0x07;
+        } else {
+            throw error("Invalid UTF-8");
+        }
+        for (int i = 0; i < extra; i++) {
+            int b = read();
+            if ((b & 0xC0) != 0x80) throw error("Invalid UTF-8");
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        if (!Character.isValidCodePoint(codePoint)) throw error("Invalid UTF-8");
+        sb.appendCodePoint(codePoint);
+    }
+
+    private void expect(char c) throws IOException {
+        if (peekNonWhitespace() != c) throw error("Expected '" + c + "'");
+        pos++;
+    }
+
+    private void expectLiteral(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (read() != literal.charAt(i)) throw error("Expected " + literal);
+        }
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c == '\n' && !lineMode) {
+                pos++;
+                newLine();
+            } else if (c == ' ' || c == '\t' || c == '\r') {
+                pos++;
+            } else {
+                return c;
+            }
+        }
+    }
+
+    private void newLine() {
+        line++;
+        lineStart = consumed + pos;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos] & 0xFF;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = 0;
+        limit = 0;
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) return false;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,317 @@
+package fairshare;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * JSON writer that encodes straight into a UTF-8 byte buffer, escaping strings as it goes.
+ *
+ * Buffers come from a small shared pool and go back to it on release(), so a response
+ * costs no intermediate String and, once the pool is warm, no buffer allocation. The
+ * encoded length is known before the headers are sent, and the body goes out as one
+ * write.
+ */
+class JsonWriter {
+    // Lets a type serialize itself when passed to value(Object)
+    interface Writable {
+        void writeJson(JsonWriter out);
+    }
+
+    private static final int INITIAL_SIZE = 4096;
+    private static final int MAX_POOLED_SIZE = 1 << 18; // larger buffers are left to the GC
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(256);
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buf;
+    private int size;
+
+    // Per nesting level: whether the next value is the first in its container
+    private boolean[] first = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    private JsonWriter(byte[] buf) {
+        this.buf = buf;
+    }
+
+    static JsonWriter acquire() {
+        byte[] buf = POOL.poll();
+        return new JsonWriter(buf != null ? buf : new byte[INITIAL_SIZE]);
+    }
+
+    // Encode a whole value into an exact-size array, e.g. for caching
+    static byte[] toBytes(Object value) {
+        return toBytes(out -> out.value(value));
+    }
+
+    static byte[] toBytes(Writable body) {
+        JsonWriter out = acquire();
+        try {
+            body.writeJson(out);
+            return out.toByteArray();
+        } finally {
+            out.release();
+        }
+    }
+
+    void release() {
+        if (buf != null && buf.length <= MAX_POOLED_SIZE) POOL.offer(buf);
+        buf = null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    // Send the buffer as a complete JSON response and release it
+    void send(HttpExchange exchange, int status) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, size);
+            OutputStream os = exchange.getResponseBody();
+            os.write(buf, 0, size);
+            os.close();
+        } finally {
+            release();
+        }
+    }
+
+    // Write what has been encoded so far and start over, for streamed responses
+    void flushTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+        size = 0;
+    }
+
+    JsonWriter beginObject() {
+        beforeValue();
+        put('{');
+        push();
+        return this;
+    }
+
+    JsonWriter endObject() {
+        depth--;
+        put('}');
+        return this;
+    }
+
+    JsonWriter beginArray() {
+        beforeValue();
+        put('[');
+        push();
+        return this;
+    }
+
+    JsonWriter endArray() {
+        depth--;
+        put(']');
+        return this;
+    }
+
+    JsonWriter name(String name) {
+        if (!first[depth]) put(',');
+        first[depth] = false;
+        string(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) {
+        if (value == null) return nullValue();
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    JsonWriter value(long value) {
+        beforeValue();
+        digits(value);
+        return this;
+    }
+
+    JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return nullValue();
+        beforeValue();
+        ascii(Double.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) {
+        beforeValue();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    // An amount in cents as a decimal number of dollars, without going through a double
+    JsonWriter valueCents(long cents) {
+        beforeValue();
+        if (cents < 0) {
+            put('-');
+            if (cents == Long.MIN_VALUE) {
+                ascii("92233720368547758.08");
+                return this;
+            }
+            cents = -cents;
+        }
+        digits(cents / 100);
+        put('.');
+        long fraction = cents % 100;
+        put((char) ('0' + fraction / 10));
+        if (fraction % 10 != 0) put((char) ('0' + fraction % 10));
+        return this;
+    }
+
+    JsonWriter nullValue() {
+        beforeValue();
+        ascii("null");
+        return this;
+    }
+
+    // Maps, iterables, strings, numbers, booleans, null and Writables
+    JsonWriter value(Object value) {
+        if (value == null) {
+            nullValue();
+        } else if (value instanceof String) {
+            value((String) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            value(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            value(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            value(((Boolean) value).booleanValue());
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+            endObject();
+        } else if (value instanceof Iterable) {
+            beginArray();
+            for (Object item : (Iterable<?>) value) {
+                value(item);
+            }
+            endArray();
+        } else if (value instanceof Writable) {
+            ((Writable) value).writeJson(this);
+        } else {
+            value(value.toString());
+        }
+        return this;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (!first[depth]) put(',');
+            first[depth] = false;
+        }
+    }
+
+    private void push() {
+        if (++depth == first.length) first = Arrays.copyOf(first, depth * 2);
+        first[depth] = true;
+    }
+
+    private void string(String s) {
+        // Worst case is six bytes per char for \\u escapes
+        ensure(s.length() * 6 + 2);
+        byte[] b = buf;
+        int n = size;
+        b[n++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                b[n++] = (byte) c;
+            } else if (c == '"' || c == '\\') {
+                b[n++] = '\\';
+                b[n++] = (byte) c;
+            } else if (c < 0x20) {
+                b[n++] = '\\';
+                switch (c) {
+                    case '\n': b[n++] = 'n'; break;
+                    case '\r': b[n++] = 'r'; break;
+                    case '\t': b[n++] = 't'; break;
+                    case '\b': b[n++] = 'b'; break;
+                    case '\f': b[n++] = 'f'; break;
+                    default:
+                        b[n++] = 'u';
+                        b[n++] = '0';
+                        b[n++] = '0';
+                        b[n++] = HEX[c >> 4];
+                        b[n++] = HEX[c & 0xF];
+                }
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xC0 | (c >> 6));
+                b[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[n++] = (byte) (0xF0 | (cp >> 18));
+                b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                b[n++] = '?'; // unpaired surrogate, replaced like String.getBytes does
+            } else {
+                b[n++] = (byte) (0xE0 | (c >> 12));
+                b[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        b[n++] = '"';
+        size = n;
+    }
+
+    private void digits(long value) {
+        if (value == Long.MIN_VALUE) {
+            ascii("-9223372036854775808");
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buf[size++] = '-';
+            value = -value;
+        }
+        int start = size;
+        do {
+            buf[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // Digits came out least significant first
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    // Only for text known to be ASCII
+    private void ascii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void put(char c) {
+        ensure(1);
+        buf[size++] = (byte) c;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+    }
+}
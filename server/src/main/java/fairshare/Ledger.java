@@ -0,0 +1,737 @@
+package fairshare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Thread-safe store for expenses and running balances.
+ *
+ * Balances are whole cents. Each person gets a dense int id the first time they are
+ * seen and their balance lives in a page of atomic longs, so applying an expense is a
+ * few lock-free adds with no boxing, and concurrent /addExpense calls only contend
+ * when they touch the same person. The read/write lock is used the other way round
+ * from usual: writers share the "read" side and snapshots take the exclusive side,
+ * which means a snapshot never sees a half-applied expense.
+ *
+ * Expenses get increasing ids and are kept sorted by id, so pages can be read from
+ * any id onwards without a lock.
+ *
+ * A ledger opened on a LedgerStore also hands every change to the store, and lets it
+ * wait for durability once the lock is released.
+ *
+ * Every change bumps a version counter. Read endpoints render their response once per
+ * version through view(), so repeated reads between writes reuse the same bytes.
+ *
+ * Expenses are stamped with their creation time when they get their id, and ids and
+ * times increase together. balancesAsOf() answers point-in-time queries from sparse
+ * checkpoints of the balances after every K-th expense: it binary-searches for the
+ * nearest checkpoint and replays at most K expenses from there. Checkpoints are built
+ * lazily from the history by the first query that needs them, so recording an expense
+ * pays nothing for them. Once there would be more than MAX_CHECKPOINTS, every other
+ * one is dropped and K doubles, which bounds their memory however long the history.
+ *
+ * Each person also has an index of the expenses they paid for or share in, and a net
+ * amount per counterparty, both updated as expenses are applied. Per-person queries
+ * then cost time in proportion to that person's activity rather than the history.
+ *
+ * Expenses can be removed or replaced by id. Both take the exclusive lock, so an edit
+ * never overlaps an expense being recorded (or persisted) and stores and subscribers see
+ * edits in the order they were applied. The work is proportional to the expense's
+ * participants: its shares are reversed in the balances, the person index and the
+ * counterparty amounts, and only checkpoints after it are dropped.
+ *
+ * Once someone subscribes to /events, recorded expenses and clears are also published
+ * to the ledger's EventFeed, from inside the same critical section as the change.
+ */
+class Ledger implements Closeable {
+    private final ConcurrentSkipListMap<Long, App.Expense> expenses = new ConcurrentSkipListMap<>();
+    private final AtomicLong lastId = new AtomicLong();
+    private final AtomicLong expenseCount = new AtomicLong(); // the skip list's size() is O(n)
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Replaced as a whole by clear and restore, which hold the exclusive lock
+    private Balances balances = new Balances();
+
+    private LedgerStore store; // null for a memory-only ledger
+
+    private final AtomicLong version = new AtomicLong();
+    // Tells ledger instances apart, so a version seen before a restart or eviction never matches
+    private final String epoch = Long.toHexString(new Random().nextLong());
+    private final ConcurrentHashMap<String, View> views = new ConcurrentHashMap<>();
+
+    private volatile EventFeed feed; // created by the first subscriber
+
+    // Expenses by person, as payer or sharer, kept sorted by id like the main map
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, App.Expense>> byPerson = new ConcurrentHashMap<>();
+    // owed.get(x).get(y): cents y owes x net of what x owes y; both directions are kept
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicLong>> owed = new ConcurrentHashMap<>();
+
+    // Expenses between two checkpoints to start with, and how many checkpoints to keep
+    private static final int CHECKPOINT_INTERVAL = Integer.getInteger("fairshare.checkpointEvery", 1000);
+    private static final int MAX_CHECKPOINTS = Integer.getInteger("fairshare.maxCheckpoints", 128);
+
+    // Hands out ids and creation times together, so both increase in the same order, and
+    // publishes each expense before the next id is handed out
+    private final Object sequence = new Object();
+    private long lastCreatedAt; // guarded by sequence
+
+    // Replaced by clear and restore, which hold the exclusive lock
+    private History history = new History();
+
+    // Person names interned to dense ids, with each id's balance in cents
+    private static class Balances {
+        private static final int PAGE_BITS = 10;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int MAX_PAGES = 4096; // 4M people per group
+
+        final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        // computeIfAbsent runs concurrently for names in different bins, so ids are reserved atomically
+        private final AtomicInteger reserved = new AtomicInteger();
+        // Ids whose name and page are in place; equal to reserved whenever no id is being created
+        final AtomicInteger count = new AtomicInteger();
+        // Pages are allocated on first use; a losing CAS just drops its empty page
+        final AtomicReferenceArray<String[]> names = new AtomicReferenceArray<>(MAX_PAGES);
+        final AtomicReferenceArray<AtomicLongArray> cents = new AtomicReferenceArray<>(MAX_PAGES);
+
+        // Throws ArithmeticException, leaving the balance as it was, if it would overflow
+        void add(String name, long delta) {
+            int id = id(name);
+            AtomicLongArray page = centsPage(id);
+            int slot = id & (PAGE_SIZE - 1);
+            long current;
+            do {
+                current = page.get(slot);
+            } while (!page.compareAndSet(slot, current, Math.addExact(current, delta)));
+        }
+
+        private int id(String name) {
+            Integer id = ids.get(name);
+            if (id != null) return id;
+            return ids.computeIfAbsent(name, k -> {
+                int next = reserved.getAndIncrement();
+                if (next >= MAX_PAGES * PAGE_SIZE) throw new IllegalStateException("Too many people in one group");
+                namePage(next)[next & (PAGE_SIZE - 1)] = k;
+                centsPage(next);
+                count.incrementAndGet();
+                return next;
+            });
+        }
+
+        // Cents for one person, or null if they have never had a balance
+        Long get(String name) {
+            Integer id = ids.get(name);
+            return id != null ? centsPage(id).get(id & (PAGE_SIZE - 1)) : null;
+        }
+
+        // Only called under the exclusive lock, when no id is being created and count covers every id
+        Map<String, Long> toMap() {
+            int n = count.get();
+            Map<String, Long> map = new HashMap<>(n * 2);
+            for (int id = 0; id < n; id++) {
+                map.put(namePage(id)[id & (PAGE_SIZE - 1)], centsPage(id).get(id & (PAGE_SIZE - 1)));
+            }
+            return map;
+        }
+
+        private String[] namePage(int id) {
+            int page = id >>> PAGE_BITS;
+            String[] result = names.get(page);
+            if (result == null) {
+                names.compareAndSet(page, null, new String[PAGE_SIZE]);
+                result = names.get(page);
+            }
+            return result;
+        }
+
+        private AtomicLongArray centsPage(int id) {
+            int page = id >>> PAGE_BITS;
+            AtomicLongArray result = cents.get(page);
+            if (result == null) {
+                cents.compareAndSet(page, null, new AtomicLongArray(PAGE_SIZE));
+                result = cents.get(page);
+            }
+            return result;
+        }
+    }
+
+    // Balances after the expense with the given id; the first checkpoint is the empty ledger
+    private static class Checkpoint {
+        final long id;
+        final long createdAt;
+        final long position; // expenses covered, always a multiple of the interval
+        final Map<String, Long> balances;
+
+        Checkpoint(long id, long createdAt, long position, Map<String, Long> balances) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.position = position;
+            this.balances = balances;
+        }
+    }
+
+    // Checkpoints in id order, extended and thinned under the History's monitor
+    private static class History {
+        final List<Checkpoint> checkpoints = new ArrayList<>();
+        long interval = CHECKPOINT_INTERVAL;
+
+        History() {
+            checkpoints.add(new Checkpoint(0, Long.MIN_VALUE, 0, new HashMap<>()));
+        }
+    }
+
+    // Balances at a point in history, and the last expense they include (0 for none)
+    static class AsOf {
+        final long expenseId;
+        final Map<String, Long> balances;
+
+        AsOf(long expenseId, Map<String, Long> balances) {
+            this.expenseId = expenseId;
+            this.balances = balances;
+        }
+    }
+
+    static class Breakdown {
+        final long balance;
+        final Map<String, Long> counterparties;
+
+        Breakdown(long balance, Map<String, Long> counterparties) {
+            this.balance = balance;
+            this.counterparties = counterparties;
+        }
+    }
+
+    /**
+     * A point in the ledger's history: the id sequence and a marker, taken together under
+     * the exclusive lock. Nothing is copied; the expenses are read afterwards from the live
+     * map. Changes made after the marker may show in that read, but replaying the records
+     * after the marker on top of it converges, since every one of them sets an expense
+     * outright. The sequence may be past the newest expense left if that one was removed;
+     * stores persist it so that ids are never handed out twice.
+     */
+    static class State {
+        final long lastId;
+        final long lastCreatedAt;
+        final long mark;
+        private final Ledger ledger;
+
+        State(Ledger ledger, long lastId, long lastCreatedAt, long mark) {
+            this.ledger = ledger;
+            this.lastId = lastId;
+            this.lastCreatedAt = lastCreatedAt;
+            this.mark = mark;
+        }
+
+        // Live, weakly consistent view of the expenses up to lastId, in id order
+        Collection<App.Expense> expenses() {
+            return ledger.expenses.headMap(lastId, true).values();
+        }
+    }
+
+    interface Marker {
+        long mark() throws IOException;
+    }
+
+    // A response body rendered from the balances at one version
+    static class View {
+        final String etag;
+        final byte[] body;
+        final long version;
+
+        View(String etag, byte[] body, long version) {
+            this.etag = etag;
+            this.body = body;
+            this.version = version;
+        }
+    }
+
+    // Whether the store has failed, leaving changes in memory that may not be durable
+    boolean failed() {
+        LedgerStore current = store;
+        return current != null && current.failed();
+    }
+
+    // Open a persistent ledger, recovering its state from the store
+    static Ledger open(LedgerStore store) throws IOException {
+        Ledger ledger = new Ledger();
+        try {
+            store.load(ledger);
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        ledger.store = store;
+        return ledger;
+    }
+
+    /**
+     * Record an expense and apply the payer credit and its precomputed shares. Throws
+     * IllegalArgumentException, recording nothing, if a balance would overflow.
+     */
+    void record(App.Expense expense) throws IOException {
+        long ticket = 0;
+        if (store != null) store.reserve(1);
+        lock.readLock().lock();
+        try {
+            try {
+                apply(expense);
+            } catch (ArithmeticException e) {
+                if (store != null) store.unreserve(1);
+                throw overflow();
+            }
+            if (store != null) ticket = store.expenseAdded(expense);
+            EventFeed events = feed;
+            if (events != null) events.expenseAdded(expense);
+        } finally {
+            lock.readLock().unlock();
+        }
+        commit(ticket);
+    }
+
+    /**
+     * Record a batch of expenses under one lock acquisition and one store sync. Stops before
+     * the first expense that would overflow a balance; returns how many were recorded.
+     */
+    int recordAll(List<App.Expense> batch) throws IOException {
+        long ticket = 0;
+        int recorded = 0;
+        if (store != null) store.reserve(batch.size());
+        lock.readLock().lock();
+        try {
+            EventFeed events = feed;
+            for (App.Expense expense : batch) {
+                try {
+                    apply(expense);
+                } catch (ArithmeticException e) {
+                    if (store != null) store.unreserve(batch.size() - recorded);
+                    break;
+                }
+                if (store != null) ticket = store.expenseAdded(expense);
+                if (events != null) events.expenseAdded(expense);
+                recorded++;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        commit(ticket);
+        return recorded;
+    }
+
+    static IllegalArgumentException overflow() {
+        return new IllegalArgumentException("Amounts too large, a balance would overflow");
+    }
+
+    Map<String, Long> balanceCents() {
+        lock.writeLock().lock();
+        try {
+            return balances.toMap();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ETag for the current version, cheap enough to check before rendering anything
+    String etag() {
+        return etag(version.get());
+    }
+
+    /**
+     * Body for the given key at the current version. The render function only runs when
+     * the ledger has changed since the last call for that key; callers must keep the
+     * number of keys small since views live as long as the ledger.
+     */
+    View view(String key, Function<Map<String, Long>, byte[]> render) {
+        View cached = views.get(key);
+        if (cached != null && cached.version == version.get()) return cached;
+        Map<String, Long> snapshot;
+        long current;
+        lock.writeLock().lock();
+        try {
+            current = version.get();
+            snapshot = balances.toMap();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        View fresh = new View(etag(current), render.apply(snapshot), current);
+        views.merge(key, fresh, (old, latest) -> latest.version >= old.version ? latest : old);
+        return fresh;
+    }
+
+    /**
+     * Balances after all expenses with an id up to maxId created up to maxCreatedAt.
+     * Pass Long.MAX_VALUE for the bound that is not wanted.
+     */
+    AsOf balancesAsOf(long maxId, long maxCreatedAt) {
+        History current;
+        long applied;
+        lock.writeLock().lock();
+        try {
+            // With writers excluded, every id up to lastId has been applied
+            current = history;
+            applied = lastId.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        long limit = Math.min(maxId, applied);
+
+        Checkpoint start;
+        synchronized (current) {
+            extend(current, applied);
+            List<Checkpoint> checkpoints = current.checkpoints;
+            int lo = 0;
+            int hi = checkpoints.size() - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                Checkpoint c = checkpoints.get(mid);
+                if (c.id <= limit && c.createdAt <= maxCreatedAt) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            start = checkpoints.get(lo);
+        }
+
+        Map<String, Long> balances = new HashMap<>(start.balances);
+        long last = start.id;
+        for (App.Expense expense : expenses.tailMap(start.id, false).values()) {
+            if (expense.id > limit || expense.createdAt > maxCreatedAt) break;
+            expense.addDeltas(balances, 1);
+            last = expense.id;
+        }
+        return new AsOf(last, balances);
+    }
+
+    // Add checkpoints up to the applied id, leaving fewer than interval expenses after the last
+    private void extend(History history, long applied) {
+        List<Checkpoint> checkpoints = history.checkpoints;
+        Checkpoint last = checkpoints.get(checkpoints.size() - 1);
+        Map<String, Long> balances = null;
+        long position = last.position;
+        for (App.Expense expense : expenses.tailMap(last.id, false).headMap(applied, true).values()) {
+            if (balances == null) balances = new HashMap<>(last.balances);
+            expense.addDeltas(balances, 1);
+            if (++position % history.interval != 0) continue;
+            checkpoints.add(new Checkpoint(expense.id, expense.createdAt, position, new HashMap<>(balances)));
+            if (checkpoints.size() > MAX_CHECKPOINTS) {
+                history.interval *= 2;
+                checkpoints.removeIf(c -> c.position % history.interval != 0);
+            }
+        }
+    }
+
+    private String etag(long version) {
+        return "\"" + epoch + "-" + version + "\"";
+    }
+
+    // Remove an expense and reverse its shares; false if there is no expense with that id
+    boolean remove(long id) throws IOException {
+        long ticket = 0;
+        if (store != null) store.reserve(1);
+        lock.writeLock().lock();
+        try {
+            App.Expense removed = applyRemove(id);
+            if (removed == null) {
+                if (store != null) store.unreserve(1);
+                return false;
+            }
+            if (store != null) ticket = store.expenseRemoved(removed);
+            if (feed != null) feed.expenseRemoved(removed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(ticket);
+        return true;
+    }
+
+    // Replace the expense with the same id, keeping its creation time; false if there is none
+    boolean replace(App.Expense updated) throws IOException {
+        long ticket = 0;
+        if (store != null) store.reserve(1);
+        lock.writeLock().lock();
+        try {
+            App.Expense old;
+            try {
+                old = applyReplace(updated);
+            } catch (ArithmeticException e) {
+                if (store != null) store.unreserve(1);
+                throw overflow();
+            }
+            if (old == null) {
+                if (store != null) store.unreserve(1);
+                return false;
+            }
+            if (store != null) ticket = store.expenseReplaced(old, updated);
+            if (feed != null) feed.expenseReplaced(old, updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(ticket);
+        return true;
+    }
+
+    App.Expense expense(long id) {
+        return expenses.get(id);
+    }
+
+    // Live, weakly consistent view of the expenses with ids above the given one, in id order
+    Collection<App.Expense> expensesAfter(long afterId) {
+        return expenses.tailMap(afterId, false).values();
+    }
+
+    // The same for the expenses one person paid for or shares in
+    Collection<App.Expense> expensesAfter(String person, long afterId) {
+        ConcurrentSkipListMap<Long, App.Expense> own = byPerson.get(person);
+        return own != null ? own.tailMap(afterId, false).values() : Collections.emptyList();
+    }
+
+    /**
+     * A person's balance split by counterparty: cents each other person owes them, negative
+     * where they owe that person, with settled pairs left out. The amounts add up to the
+     * person's balance. Null if the person has no balance.
+     */
+    Breakdown breakdown(String person) {
+        lock.writeLock().lock();
+        try {
+            Long balance = balances.get(person);
+            if (balance == null) return null;
+            Map<String, Long> amounts = new HashMap<>();
+            ConcurrentHashMap<String, AtomicLong> own = owed.get(person);
+            if (own != null) {
+                for (Map.Entry<String, AtomicLong> entry : own.entrySet()) {
+                    long cents = entry.getValue().get();
+                    if (cents != 0) amounts.put(entry.getKey(), cents);
+                }
+            }
+            return new Breakdown(balance, amounts);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    long expenseCount() {
+        return expenseCount.get();
+    }
+
+    int participantCount() {
+        return balances.count.get();
+    }
+
+    boolean isEmpty() {
+        return expenses.isEmpty() && balances.count.get() == 0;
+    }
+
+    void clear() throws IOException {
+        long ticket = 0;
+        if (store != null) store.reserve(1);
+        lock.writeLock().lock();
+        try {
+            expenses.clear();
+            expenseCount.set(0);
+            byPerson.clear();
+            owed.clear();
+            balances = new Balances();
+            history = new History();
+            version.incrementAndGet();
+            if (store != null) ticket = store.cleared();
+            if (feed != null) feed.cleared();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(ticket);
+    }
+
+    // The change feed for /events, created on first use
+    EventFeed events() {
+        EventFeed events = feed;
+        if (events != null) return events;
+        synchronized (this) {
+            if (feed == null) feed = new EventFeed(epoch, this::resetEvent);
+            return feed;
+        }
+    }
+
+    // Publishing happens under the shared lock, so this pairs the balances with the last event exactly
+    private EventFeed.Event resetEvent() {
+        Map<String, Long> snapshot;
+        long seq;
+        lock.writeLock().lock();
+        try {
+            snapshot = balances.toMap();
+            seq = feed.lastSeq();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return feed.resetEvent(seq, snapshot);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (feed != null) feed.close();
+        if (store != null) store.close();
+    }
+
+    State capture(Marker marker) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long createdAt;
+            synchronized (sequence) {
+                createdAt = lastCreatedAt;
+            }
+            return new State(this, lastId.get(), createdAt, marker.mark());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Apply changes without persisting them; used directly by LedgerStore.load
+    void apply(App.Expense expense) {
+        addShares(expense, 1); // first, since it is the only step that can fail
+        synchronized (sequence) {
+            if (expense.id == 0) {
+                expense.id = lastId.incrementAndGet();
+                expense.createdAt = Math.max(System.currentTimeMillis(), lastCreatedAt);
+            } else {
+                lastId.accumulateAndGet(expense.id, Math::max); // replayed with its original id
+            }
+            lastCreatedAt = Math.max(lastCreatedAt, expense.createdAt);
+            // Published in id order, so a page that ends at id N never misses one below it
+            if (expenses.put(expense.id, expense) == null) expenseCount.incrementAndGet();
+            indexByPerson(expense);
+        }
+        addOwed(expense, 1);
+        version.incrementAndGet();
+    }
+
+    // Remove without persisting; the caller holds the exclusive lock, or is LedgerStore.load
+    App.Expense applyRemove(long id) {
+        App.Expense removed = expenses.remove(id);
+        if (removed == null) return null;
+        expenseCount.decrementAndGet();
+        addShares(removed, -1);
+        unindex(removed);
+        truncateHistory(id);
+        version.incrementAndGet();
+        return removed;
+    }
+
+    // Replace without persisting, under the same conditions; returns the old expense
+    App.Expense applyReplace(App.Expense updated) {
+        App.Expense old = expenses.get(updated.id);
+        if (old == null) return null;
+        addShares(updated, 1); // first, since it is the only step that can fail
+        updated.createdAt = old.createdAt;
+        expenses.put(updated.id, updated);
+        addShares(old, -1);
+        unindex(old);
+        index(updated);
+        truncateHistory(updated.id);
+        version.incrementAndGet();
+        return old;
+    }
+
+    // All or nothing: on overflow the balances already changed are put back before rethrowing
+    private void addShares(App.Expense expense, long sign) {
+        App.Shares shares = expense.shares;
+        balances.add(expense.payer, sign * shares.totalCents());
+        int applied = 0;
+        try {
+            for (; applied < shares.names.length; applied++) {
+                balances.add(shares.names[applied], -sign * shares.cents[applied]);
+            }
+        } catch (ArithmeticException e) {
+            for (int i = 0; i < applied; i++) {
+                balances.add(shares.names[i], sign * shares.cents[i]);
+            }
+            balances.add(expense.payer, -sign * shares.totalCents());
+            throw e;
+        }
+    }
+
+    // Add an expense to the per-person index and counterparty amounts
+    private void index(App.Expense expense) {
+        indexByPerson(expense);
+        addOwed(expense, 1);
+    }
+
+    private void indexByPerson(App.Expense expense) {
+        byPerson.computeIfAbsent(expense.payer, k -> new ConcurrentSkipListMap<>()).put(expense.id, expense);
+        for (String sharer : expense.shares.names) {
+            if (sharer.equals(expense.payer)) continue;
+            byPerson.computeIfAbsent(sharer, k -> new ConcurrentSkipListMap<>()).put(expense.id, expense);
+        }
+    }
+
+    private void unindex(App.Expense expense) {
+        byPerson.get(expense.payer).remove(expense.id);
+        for (String sharer : expense.shares.names) {
+            if (sharer.equals(expense.payer)) continue;
+            byPerson.get(sharer).remove(expense.id);
+        }
+        addOwed(expense, -1);
+    }
+
+    private void addOwed(App.Expense expense, long sign) {
+        App.Shares shares = expense.shares;
+        for (int i = 0; i < shares.names.length; i++) {
+            String sharer = shares.names[i];
+            if (sharer.equals(expense.payer)) continue;
+            owedCounter(expense.payer, sharer).addAndGet(sign * shares.cents[i]);
+            owedCounter(sharer, expense.payer).addAndGet(-sign * shares.cents[i]);
+        }
+    }
+
+    // Checkpoints at or after an edited expense no longer hold; the next query rebuilds them
+    private void truncateHistory(long id) {
+        History current = history;
+        synchronized (current) {
+            current.checkpoints.removeIf(c -> c.id >= id && c.position > 0);
+        }
+    }
+
+    private AtomicLong owedCounter(String to, String from) {
+        return owed.computeIfAbsent(to, k -> new ConcurrentHashMap<>()).computeIfAbsent(from, k -> new AtomicLong());
+    }
+
+    /**
+     * Replace the state with the given balances and expenses. The sequence only moves
+     * forward: it continues after the larger of the given sequence, the expenses' own ids
+     * and creation times, and what it had already reached.
+     */
+    void restore(Map<String, Long> balanceCents, List<App.Expense> expenses, long sequenceId, long sequenceCreatedAt) {
+        balances = new Balances();
+        history = new History();
+        for (Map.Entry<String, Long> entry : balanceCents.entrySet()) {
+            balances.add(entry.getKey(), entry.getValue());
+        }
+        this.expenses.clear();
+        byPerson.clear();
+        owed.clear();
+        lastId.accumulateAndGet(sequenceId, Math::max);
+        synchronized (sequence) {
+            lastCreatedAt = Math.max(lastCreatedAt, sequenceCreatedAt);
+        }
+        for (App.Expense expense : expenses) {
+            this.expenses.put(expense.id, expense);
+            index(expense);
+            lastId.accumulateAndGet(expense.id, Math::max);
+            synchronized (sequence) {
+                lastCreatedAt = Math.max(lastCreatedAt, expense.createdAt);
+            }
+        }
+        expenseCount.set(this.expenses.size());
+        version.incrementAndGet();
+    }
+
+    private void commit(long ticket) throws IOException {
+        if (store != null) store.sync(ticket);
+    }
+}
@@ -0,0 +1,66 @@
+package fairshare;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Persistence backend for one group's ledger. The ledger stays the source for all
+ * reads; a store only sees the changes and hands them back on load.
+ *
+ * The change methods are called inside the ledger's write ordering, after the change is
+ * already applied in memory, so they must only queue work. A store that can run out of
+ * room takes it in reserve(), which the ledger calls before taking its lock and which
+ * may block or fail; the change methods then use the room reserved. sync() is called
+ * after the ledger lock is released and may block until the change is durable, or
+ * return straight away for write-behind stores.
+ */
+interface LedgerStore extends Closeable {
+    // Replay the persisted state into a new, empty ledger
+    void load(Ledger ledger) throws IOException;
+
+    // Each change method returns a ticket for sync()
+    long expenseAdded(App.Expense expense) throws IOException;
+
+    long expenseRemoved(App.Expense removed) throws IOException;
+
+    // The updated expense has the same id as the old one
+    long expenseReplaced(App.Expense old, App.Expense updated) throws IOException;
+
+    long cleared() throws IOException;
+
+    void sync(long ticket) throws IOException;
+
+    // Make room for the given number of changes, or throw if there is none
+    default void reserve(int changes) throws IOException {
+    }
+
+    // Give back room reserved for changes that were not made
+    default void unreserve(int changes) {
+    }
+
+    // Whether the store has stopped accepting changes, so that the ledger must be reloaded from it
+    default boolean failed() {
+        return false;
+    }
+
+    // The store cannot take changes or be loaded right now; answered with 503
+    class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    // Opens the store for each group; closing it releases anything shared between groups
+    interface Factory extends Closeable {
+        LedgerStore open(String group) throws IOException;
+
+        // Whether anything was ever stored for the group, without creating it
+        boolean exists(String group) throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package fairshare;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Request metrics for every HTTP context, exported at /metrics in the Prometheus text
+ * format.
+ *
+ * A filter on each context counts requests, errors and response bytes, and records the
+ * latency into a lock-free log-linear histogram per endpoint. Recording a request is a
+ * few atomic increments; all the formatting happens when /metrics is scraped.
+ */
+class Metrics {
+    // Bucket bounds for the exported Prometheus histogram, in seconds
+    private static final double[] BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentSkipListMap<>();
+    private final Map<String, Value> values = new ConcurrentSkipListMap<>();
+
+    // A value read at scrape time: a gauge, or a counter that only ever goes up
+    private static class Value {
+        final String type;
+        final String help;
+        final Supplier<Number> value;
+
+        Value(String type, String help, Supplier<Number> value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    static class Endpoint {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+        final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length);
+        final Histogram latency = new Histogram();
+
+        void record(long nanos, boolean error, long bytes) {
+            requests.increment();
+            if (error) errors.increment();
+            bytesOut.add(bytes);
+            latencyNanos.add(nanos);
+            latency.record(nanos);
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                if (seconds <= BOUNDS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Log-linear histogram of microsecond values: every power of two is split into
+     * 2^subBits linear sub-buckets. The default of 3 keeps quantiles within 12.5% from
+     * 1us to over an hour in a few KB.
+     */
+    static class Histogram {
+        private final int subBits;
+        private final int subCount;
+        private final AtomicLongArray counts;
+
+        Histogram() {
+            this(3);
+        }
+
+        Histogram(int subBits) {
+            this.subBits = subBits;
+            this.subCount = 1 << subBits;
+            this.counts = new AtomicLongArray((64 - subBits + 1) * subCount);
+        }
+
+        void record(long nanos) {
+            recordMicros(Math.max(0, nanos / 1000));
+        }
+
+        void recordMicros(long micros) {
+            counts.incrementAndGet(index(micros));
+        }
+
+        int index(long micros) {
+            if (micros < subCount) return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - subBits)) & (subCount - 1);
+            return (exponent - subBits + 1) * subCount + sub;
+        }
+
+        // Largest value that falls into a bucket, in microseconds
+        long upperBound(int index) {
+            if (index < subCount) return index;
+            int exponent = index / subCount + subBits - 1;
+            long sub = index % subCount;
+            return ((subCount + sub + 1) << (exponent - subBits)) - 1;
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        // Upper bound of the bucket holding the given quantile, in microseconds; 0 when empty
+        long quantile(double q) {
+            int buckets = counts.length();
+            long[] snapshot = new long[buckets];
+            long total = 0;
+            for (int i = 0; i < buckets; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < buckets; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(buckets - 1);
+        }
+    }
+
+    Endpoint endpoint(String name) {
+        return endpoints.computeIfAbsent(name, k -> new Endpoint());
+    }
+
+    // An instantaneous value, such as a size or a queue depth
+    void gauge(String name, String help, Supplier<Number> value) {
+        values.put(name, new Value("gauge", help, value));
+    }
+
+    // A running total since startup, so that rate() and increase() work; the name should end in _total
+    void counter(String name, String help, Supplier<Number> value) {
+        values.put(name, new Value("counter", help, value));
+    }
+
+    // Filter that records every exchange on a context under the given endpoint name
+    Filter filter(String name) {
+        return filter(name, path -> null);
+    }
+
+    /**
+     * The same, but a request whose path the classifier names gets recorded under that name
+     * instead. The classifier must only return a small, fixed set of names.
+     */
+    Filter filter(String name, Function<String, String> classifier) {
+        Endpoint defaultEndpoint = endpoint(name);
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long start = System.nanoTime();
+                CountingOutputStream out = new CountingOutputStream(exchange.getResponseBody());
+                exchange.setStreams(null, out);
+                boolean failed = true;
+                try {
+                    chain.doFilter(exchange);
+                    failed = false;
+                } finally {
+                    String specific = classifier.apply(exchange.getRequestURI().getRawPath());
+                    Endpoint endpoint = specific != null ? endpoint(specific) : defaultEndpoint;
+                    int status = exchange.getResponseCode();
+                    endpoint.record(System.nanoTime() - start, failed || status >= 400, out.count);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "metrics";
+            }
+        };
+    }
+
+    HttpHandler handler() {
+        return exchange -> {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.close();
+        };
+    }
+
+    String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        header(sb, "fairshare_http_requests_total", "counter", "Requests handled, by endpoint");
+        for (Map.Entry<String, Endpoint> e : endpoints.entrySet()) {
+            sample(sb, "fairshare_http_requests_total", e.getKey(), null, e.getValue().requests.sum());
+        }
+        header(sb, "fairshare_http_errors_total", "counter", "Requests that failed or returned a 4xx/5xx status");
+        for (Map.Entry<String, Endpoint> e : endpoints.entrySet()) {
+            sample(sb, "fairshare_http_errors_total", e.getKey(), null, e.getValue().errors.sum());
+        }
+        header(sb, "fairshare_http_response_bytes_total", "counter", "Response body bytes written");
+        for (Map.Entry<String, Endpoint> e : endpoints.entrySet()) {
+            sample(sb, "fairshare_http_response_bytes_total", e.getKey(), null, e.getValue().bytesOut.sum());
+        }
+
+        header(sb, "fairshare_http_request_duration_seconds", "histogram", "Request latency");
+        for (Map.Entry<String, Endpoint> e : endpoints.entrySet()) {
+            Endpoint endpoint = e.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                cumulative += endpoint.buckets.get(i);
+                sample(sb, "fairshare_http_request_duration_seconds_bucket", e.getKey(), "le=\"" + BigDecimal.valueOf(BOUNDS[i]).toPlainString() + "\"", cumulative);
+            }
+            long count = endpoint.requests.sum();
+            sample(sb, "fairshare_http_request_duration_seconds_bucket", e.getKey(), "le=\"+Inf\"", count);
+            sample(sb, "fairshare_http_request_duration_seconds_sum", e.getKey(), null, endpoint.latencyNanos.sum() / 1e9);
+            sample(sb, "fairshare_http_request_duration_seconds_count", e.getKey(), null, count);
+        }
+
+        header(sb, "fairshare_http_request_latency_seconds", "gauge", "Latency quantiles since startup, within 12.5%");
+        for (Map.Entry<String, Endpoint> e : endpoints.entrySet()) {
+            for (double q : QUANTILES) {
+                sample(sb, "fairshare_http_request_latency_seconds", e.getKey(), "quantile=\"" + q + "\"",
+                        e.getValue().latency.quantile(q) / 1e6);
+            }
+        }
+
+        for (Map.Entry<String, Value> v : values.entrySet()) {
+            header(sb, v.getKey(), v.getValue().type, v.getValue().help);
+            sample(sb, v.getKey(), null, null, v.getValue().value.get());
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String endpoint, String label, Number value) {
+        sb.append(name);
+        if (endpoint != null || label != null) {
+            sb.append('{');
+            if (endpoint != null) sb.append("endpoint=\"").append(endpoint).append('"');
+            if (endpoint != null && label != null) sb.append(',');
+            if (label != null) sb.append(label);
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (value instanceof Double) {
+            sb.append(value.doubleValue());
+        } else {
+            sb.append(value.longValue());
+        }
+        sb.append('\n');
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package fairshare;
+
+import java.util.*;
+
+/**
+ * Settlement planning on a snapshot of balances. Nothing here touches the ledger.
+ *
+ * Balances come in whole cents and always sum to zero, so zero checks are exact. Two strategies:
+ * - greedy: repeatedly settles the largest debtor against the largest creditor using
+ *   two heaps, O(n log n), at most n - 1 transfers
+ * - exact: finds the minimum number of transfers by splitting people into as many
+ *   zero-sum subgroups as possible (a subgroup of k people needs k - 1 transfers), with
+ *   a DP over subsets, O(n * 2^n); only usable for small groups
+ */
+class Settlements {
+    // The exact solver allocates 9 * 2^n bytes per request, about 9MB at this size
+    static final int MAX_EXACT_PEOPLE = 20;
+
+    static class Transfer {
+        final String from;
+        final String to;
+        final long cents;
+
+        Transfer(String from, String to, long cents) {
+            this.from = from;
+            this.to = to;
+            this.cents = cents;
+        }
+    }
+
+    // A configured exact limit brought within what the solver can afford, saying so if it had to be
+    static int clampExactLimit(int configured) {
+        int limit = Math.max(0, Math.min(configured, MAX_EXACT_PEOPLE));
+        if (limit != configured) {
+            System.out.println("Exact settlement limit " + configured + " is out of range, using " + limit);
+        }
+        return limit;
+    }
+
+    // Pick exact when the number of non-zero balances is within exactLimit, greedy otherwise
+    static List<Transfer> compute(Map<String, Long> balances, String strategy, int exactLimit) {
+        String[] names = nonZeroNames(balances);
+        long[] cents = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            cents[i] = balances.get(names[i]);
+        }
+        if ("greedy".equals(strategy)) {
+            return greedy(names, cents);
+        }
+        if ("exact".equals(strategy)) {
+            if (names.length > exactLimit) {
+                throw new IllegalArgumentException("Exact settlement supports at most " + exactLimit + " people with a balance");
+            }
+            return exact(names, cents);
+        }
+        if ("auto".equals(strategy)) {
+            return names.length <= exactLimit ? exact(names, cents) : greedy(names, cents);
+        }
+        throw new IllegalArgumentException("Invalid strategy");
+    }
+
+    static List<Transfer> greedy(String[] names, long[] cents) {
+        // Heaps of indexes keyed by what each person still has outstanding, largest first.
+        // An index is only changed while it is out of its heap, so the ordering stays valid.
+        long[] remaining = cents.clone();
+        PriorityQueue<Integer> creditors = new PriorityQueue<>((a, b) -> Long.compare(remaining[b], remaining[a]));
+        PriorityQueue<Integer> debtors = new PriorityQueue<>((a, b) -> Long.compare(remaining[a], remaining[b]));
+        for (int i = 0; i < names.length; i++) {
+            if (cents[i] > 0) creditors.add(i);
+            else if (cents[i] < 0) debtors.add(i);
+        }
+
+        List<Transfer> transfers = new ArrayList<>();
+        while (!creditors.isEmpty() && !debtors.isEmpty()) {
+            int c = creditors.poll();
+            int d = debtors.poll();
+            long amount = Math.min(remaining[c], -remaining[d]);
+            transfers.add(new Transfer(names[d], names[c], amount));
+            remaining[c] -= amount;
+            remaining[d] += amount;
+            if (remaining[c] > 0) creditors.add(c);
+            if (remaining[d] < 0) debtors.add(d);
+        }
+        return transfers;
+    }
+
+    static List<Transfer> exact(String[] names, long[] cents) {
+        int n = names.length;
+        int full = (1 << n) - 1;
+        long[] sum = new long[1 << n];
+        byte[] groups = new byte[1 << n]; // max zero-sum subgroups a subset can be split into
+        for (int mask = 1; mask <= full; mask++) {
+            int low = Integer.numberOfTrailingZeros(mask);
+            sum[mask] = sum[mask & (mask - 1)] + cents[low];
+            int best = 0;
+            for (int rest = mask; rest != 0; rest &= rest - 1) {
+                best = Math.max(best, groups[mask ^ Integer.lowestOneBit(rest)]);
+            }
+            groups[mask] = (byte) (best + (sum[mask] == 0 ? 1 : 0));
+        }
+
+        // Walk back through the DP to get an order whose zero-sum prefixes mark the subgroups
+        int[] order = new int[n];
+        int mask = full;
+        for (int pos = n - 1; pos >= 0; pos--) {
+            int gain = sum[mask] == 0 ? 1 : 0;
+            for (int rest = mask; rest != 0; rest &= rest - 1) {
+                int bit = Integer.lowestOneBit(rest);
+                if (groups[mask ^ bit] + gain == groups[mask]) {
+                    order[pos] = Integer.numberOfTrailingZeros(bit);
+                    mask ^= bit;
+                    break;
+                }
+            }
+        }
+
+        // Settle each zero-sum subgroup on its own; greedy needs at most k - 1 transfers for k people
+        List<Transfer> transfers = new ArrayList<>();
+        int start = 0;
+        long running = 0;
+        for (int pos = 0; pos < n; pos++) {
+            running += cents[order[pos]];
+            if (running == 0) {
+                int size = pos - start + 1;
+                String[] groupNames = new String[size];
+                long[] groupCents = new long[size];
+                for (int i = 0; i < size; i++) {
+                    groupNames[i] = names[order[start + i]];
+                    groupCents[i] = cents[order[start + i]];
+                }
+                transfers.addAll(greedy(groupNames, groupCents));
+                start = pos + 1;
+            }
+        }
+        return transfers;
+    }
+
+    private static String[] nonZeroNames(Map<String, Long> balances) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : balances.entrySet()) {
+            if (entry.getValue() != 0) {
+                names.add(entry.getKey());
+            }
+        }
+        Collections.sort(names); // deterministic plans for the same balances
+        return names.toArray(new String[0]);
+    }
+}
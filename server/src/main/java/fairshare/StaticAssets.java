@@ -0,0 +1,151 @@
+package fairshare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory copy of the static files served by StaticFileHandler.
+ *
+ * The top-level files of the static directory are loaded at startup together with a
+ * gzip copy, an ETag and a Last-Modified date, so serving one is a lookup and a single
+ * write. A watcher thread reloads files as they change on disk.
+ */
+class StaticAssets {
+    // Only files with a known type are served
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+            ".html", "text/html; charset=utf-8",
+            ".css", "text/css; charset=utf-8",
+            ".js", "application/javascript; charset=utf-8");
+
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    static class Asset {
+        final byte[] raw;
+        final byte[] gzip; // null when compressing does not make the file smaller
+        final String contentType;
+        final String etag;
+        final String gzipEtag;
+        final long lastModified; // whole seconds, as HTTP dates have no finer resolution
+        final String lastModifiedHeader;
+
+        Asset(byte[] raw, String contentType, long lastModifiedMillis) throws IOException {
+            this.raw = raw;
+            this.contentType = contentType;
+            byte[] compressed = gzip(raw);
+            this.gzip = compressed.length < raw.length ? compressed : null;
+            CRC32 crc = new CRC32();
+            crc.update(raw);
+            String hash = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(raw.length);
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gz\"";
+            this.lastModified = lastModifiedMillis / 1000;
+            this.lastModifiedHeader = HTTP_DATE.format(Instant.ofEpochSecond(lastModified));
+        }
+
+        // The client's copy is current if it sent either variant's tag
+        boolean matches(String ifNoneMatch) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals(etag) || tag.equals(gzipEtag) || tag.equals("*")) return true;
+            }
+            return false;
+        }
+    }
+
+    private final Path dir;
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+
+    StaticAssets(Path dir) {
+        this.dir = dir;
+    }
+
+    // Load every servable file in the directory
+    void loadAll() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                reload(file.getFileName().toString());
+            }
+        }
+    }
+
+    // Asset for a request path such as "/script.js", or null
+    Asset get(String path) {
+        return assets.get(path);
+    }
+
+    int size() {
+        return assets.size();
+    }
+
+    private void reload(String name) {
+        String contentType = contentType(name);
+        if (contentType == null) return;
+        Path file = dir.resolve(name);
+        try {
+            if (!Files.isRegularFile(file)) {
+                assets.remove("/" + name);
+                return;
+            }
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            assets.put("/" + name, new Asset(Files.readAllBytes(file), contentType, lastModified));
+        } catch (NoSuchFileException e) {
+            assets.remove("/" + name);
+        } catch (IOException e) {
+            // Keep serving the previous copy; the next change event retries
+            System.out.println("Failed to load static file " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Reload files from a daemon thread whenever the directory changes
+    void watch() throws IOException {
+        WatchService watcher = dir.getFileSystem().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        try {
+                            loadAll();
+                        } catch (IOException e) {
+                            System.out.println("Failed to reload static files: " + e.getMessage());
+                        }
+                    } else {
+                        reload(((Path) event.context()).getFileName().toString());
+                    }
+                }
+                if (!key.reset()) return; // directory is gone
+            }
+        }, "static-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static String contentType(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+}
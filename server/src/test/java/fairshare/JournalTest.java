@@ -0,0 +1,155 @@
+package fairshare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reopening a journaled ledger must give back exactly what was recorded: the snapshot
+ * plus the segments after it, with a torn or corrupt tail dropped rather than misread.
+ */
+class JournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void reopenRestoresSnapshotAndLaterRecords() throws Exception {
+        Journal journal = new Journal(dir);
+        Ledger ledger = Ledger.open(journal);
+        for (int i = 0; i < 20; i++) {
+            record(ledger, i);
+        }
+        journal.writeSnapshot(ledger.capture(journal::roll));
+        assertTrue(Files.exists(dir.resolve("snapshot.bin")));
+
+        // After the snapshot: more expenses, plus edits and deletes of ones it already holds
+        for (int i = 20; i < 30; i++) {
+            record(ledger, i);
+        }
+        assertTrue(ledger.remove(3));
+        assertTrue(ledger.remove(25));
+        App.Expense edited = expense("{\"payer\":\"d\",\"total\":9.99,\"participants\":[\"a\",\"d\"],\"splitType\":\"shares\","
+                + "\"splitDetails\":{\"a\":1,\"d\":2}}");
+        edited.id = 7;
+        assertTrue(ledger.replace(edited));
+        Map<String, Long> balances = ledger.balanceCents();
+        List<String> expenses = describe(ledger);
+        ledger.close();
+
+        Ledger reopened = Ledger.open(new Journal(dir));
+        try {
+            assertEquals(balances, reopened.balanceCents());
+            assertEquals(expenses, describe(reopened));
+            assertEquals(28, reopened.expenseCount());
+
+            // The id sequence carries on after the newest expense, not after the last one left
+            App.Expense next = record(reopened, 30);
+            assertEquals(31, next.id);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void tornTailIsDropped() throws Exception {
+        Ledger ledger = Ledger.open(new Journal(dir));
+        for (int i = 0; i < 10; i++) {
+            record(ledger, i);
+        }
+        List<String> expenses = describe(ledger);
+        ledger.close();
+
+        // A crash halfway through a record leaves its length pointing past the end of the file
+        Path segment = lastSegment();
+        long size = Files.size(segment);
+        byte[] bytes = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(bytes, bytes.length - 5));
+
+        Ledger reopened = Ledger.open(new Journal(dir));
+        assertEquals(expenses.subList(0, 9), describe(reopened));
+        assertEquals(0, reopened.balanceCents().values().stream().mapToLong(Long::longValue).sum());
+
+        // New writes go to a fresh segment, never after the torn record
+        record(reopened, 10);
+        List<String> afterRestart = describe(reopened);
+        reopened.close();
+        assertEquals(size - 5, Files.size(segment));
+
+        Ledger again = Ledger.open(new Journal(dir));
+        try {
+            assertEquals(afterRestart, describe(again));
+        } finally {
+            again.close();
+        }
+    }
+
+    @Test
+    void recordWithBadChecksumEndsReplay() throws Exception {
+        Ledger ledger = Ledger.open(new Journal(dir));
+        for (int i = 0; i < 10; i++) {
+            record(ledger, i);
+        }
+        List<String> expenses = describe(ledger);
+        ledger.close();
+
+        // Flip a byte in the last record's payload, and add garbage after it for good measure
+        Path segment = lastSegment();
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 3] ^= 0x5a;
+        Files.write(segment, bytes);
+        Files.write(segment, new byte[]{0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        Ledger reopened = Ledger.open(new Journal(dir));
+        try {
+            assertEquals(expenses.subList(0, 9), describe(reopened));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    // The newest segment that holds any records, past its 8-byte header
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().matches("journal-\\d+\\.log"))
+                    .filter(p -> p.toFile().length() > 8)
+                    .max(Comparator.comparingLong(p -> Long.parseLong(p.getFileName().toString().replaceAll("\\D", ""))))
+                    .orElseThrow();
+        }
+    }
+
+    // Every field of every expense, in id order, so that two ledgers can be compared
+    private static List<String> describe(Ledger ledger) {
+        List<String> result = new ArrayList<>();
+        for (App.Expense e : ledger.expensesAfter(0)) {
+            result.add(e.id + " " + e.createdAt + " " + e.payer + " " + e.total + " " + e.participants + " " + e.splitType
+                    + " " + new TreeMap<>(e.splitDetails) + " " + Arrays.toString(e.shares.names) + " "
+                    + Arrays.toString(e.shares.cents));
+        }
+        return result;
+    }
+
+    private static App.Expense record(Ledger ledger, int i) throws Exception {
+        String[] people = {"a", "b", "c", "d"};
+        String payer = people[i % people.length];
+        App.Expense expense = expense("{\"payer\":\"" + payer + "\",\"total\":" + (1 + i * 3.17) + ",\"participants\":[\"a\",\"b\",\""
+                + people[2 + i % 2] + "\"],\"splitType\":\"equal\"}");
+        ledger.record(expense);
+        return expense;
+    }
+
+    private static App.Expense expense(String json) throws Exception {
+        Map<String, Object> response = new HashMap<>();
+        App.Expense expense = App.AddExpenseHandler.readExpense(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), response);
+        assertNotNull(expense, () -> String.valueOf(response.get("error")));
+        return expense;
+    }
+}
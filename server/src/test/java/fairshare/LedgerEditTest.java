@@ -0,0 +1,93 @@
+package fairshare;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Editing and deleting expenses, as PUT and DELETE /groups/{group}/expenses/{id} do: an
+ * expense that is added, edited and then deleted must leave no trace in the balances.
+ */
+class LedgerEditTest {
+    @Test
+    void addEditDeleteRestoresBalances() throws Exception {
+        Ledger ledger = new Ledger();
+        ledger.record(expense("{\"payer\":\"a\",\"total\":10,\"participants\":[\"a\",\"b\",\"c\"],\"splitType\":\"equal\"}"));
+        Map<String, Long> before = ledger.balanceCents();
+
+        App.Expense added = expense("{\"payer\":\"b\",\"total\":12.34,\"participants\":[\"a\",\"b\",\"c\"],\"splitType\":\"equal\"}");
+        ledger.record(added);
+        long id = added.id;
+        assertNotEquals(before, ledger.balanceCents());
+
+        // Change payer, total and split type at once, as a PUT can
+        App.Expense edited = expense("{\"payer\":\"c\",\"total\":7.01,\"participants\":[\"a\",\"c\"],\"splitType\":\"percentage\","
+                + "\"splitDetails\":{\"a\":33.3,\"c\":66.7}}");
+        edited.id = id;
+        assertTrue(ledger.replace(edited));
+        assertSame(edited, ledger.expense(id));
+        assertEquals(added.createdAt, edited.createdAt);
+        Map<String, Long> afterEdit = ledger.balanceCents();
+        assertEquals(0, afterEdit.values().stream().mapToLong(Long::longValue).sum());
+        assertEquals(before.get("a") - 233, afterEdit.get("a"));
+        assertEquals(before.get("b"), afterEdit.get("b"));
+        assertEquals(before.get("c") + 701 - 468, afterEdit.get("c"));
+
+        assertTrue(ledger.remove(id));
+        assertNull(ledger.expense(id));
+        assertEquals(before, ledger.balanceCents());
+        assertEquals(1, ledger.expenseCount());
+    }
+
+    @Test
+    void editMovesTheExpenseBetweenPeople() throws Exception {
+        Ledger ledger = new Ledger();
+        App.Expense added = expense("{\"payer\":\"a\",\"total\":3,\"participants\":[\"a\",\"b\"],\"splitType\":\"equal\"}");
+        ledger.record(added);
+        App.Expense edited = expense("{\"payer\":\"a\",\"total\":3,\"participants\":[\"a\",\"c\"],\"splitType\":\"equal\"}");
+        edited.id = added.id;
+        assertTrue(ledger.replace(edited));
+
+        assertTrue(ledger.expensesAfter("b", 0).isEmpty());
+        assertEquals(List.of(edited), new ArrayList<>(ledger.expensesAfter("c", 0)));
+        assertEquals(List.of(edited), new ArrayList<>(ledger.expensesAfter(0)));
+        assertEquals(0L, ledger.balanceCents().get("b"));
+    }
+
+    // The handlers answer 404 when these return false
+    @Test
+    void unknownIdsAreNotFound() throws Exception {
+        Ledger ledger = new Ledger();
+        App.Expense added = expense("{\"payer\":\"a\",\"total\":5,\"participants\":[\"a\",\"b\"],\"splitType\":\"equal\"}");
+        ledger.record(added);
+        Map<String, Long> before = ledger.balanceCents();
+
+        App.Expense edited = expense("{\"payer\":\"b\",\"total\":5,\"participants\":[\"a\",\"b\"],\"splitType\":\"equal\"}");
+        edited.id = added.id + 1;
+        assertFalse(ledger.replace(edited));
+        assertFalse(ledger.remove(added.id + 1));
+        assertNull(ledger.expense(added.id + 1));
+
+        // Deleting twice finds nothing the second time
+        assertTrue(ledger.remove(added.id));
+        assertFalse(ledger.remove(added.id));
+        edited.id = added.id;
+        assertFalse(ledger.replace(edited));
+
+        assertEquals(0, ledger.expenseCount());
+        assertNotEquals(before, ledger.balanceCents());
+        assertEquals(0, ledger.balanceCents().values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    private static App.Expense expense(String json) throws Exception {
+        Map<String, Object> response = new HashMap<>();
+        App.Expense expense = App.AddExpenseHandler.readExpense(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), response);
+        assertNotNull(expense, () -> String.valueOf(response.get("error")));
+        return expense;
+    }
+}
@@ -0,0 +1,154 @@
+package fairshare;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Many threads recording expenses into one ledger at once, the way concurrent /addExpense
+ * requests do. Whatever the interleaving, balances must add up to exactly zero and every
+ * person must keep a balance entry of their own.
+ */
+class LedgerStressTest {
+    private static final int THREADS = 32;
+
+    @Test
+    void concurrentExpensesBalanceToZero() throws Exception {
+        Ledger ledger = new Ledger();
+        int perThread = 2000;
+        Set<String> people = ConcurrentHashMap.newKeySet();
+        runConcurrently(THREADS, thread -> {
+            Random random = new Random(thread);
+            for (int i = 0; i < perThread; i++) {
+                // A shared pool of people plus some seen by this thread only, so ids are created concurrently
+                int payerIndex = random.nextInt(50);
+                String payer = "p" + payerIndex;
+                String own = "t" + thread + "-" + random.nextInt(100);
+                String other = "p" + (payerIndex + 1 + random.nextInt(49)) % 50;
+                String splitType = random.nextBoolean() ? "equal" : "percentage";
+                String details = "equal".equals(splitType) ? "" : ",\"splitDetails\":{\"" + payer + "\":33.3,\"" + own
+                        + "\":33.3,\"" + other + "\":33.4}";
+                // Awkward totals so that shares need rounding
+                double total = (1 + random.nextInt(100000)) / 100.0;
+                record(ledger, "{\"payer\":\"" + payer + "\",\"total\":" + total + ",\"participants\":[\"" + payer
+                        + "\",\"" + own + "\",\"" + other + "\"],\"splitType\":\"" + splitType + "\"" + details + "}");
+                people.add(payer);
+                people.add(own);
+                people.add(other);
+            }
+        });
+
+        Map<String, Long> balances = ledger.balanceCents();
+        assertEquals(0, balances.values().stream().mapToLong(Long::longValue).sum());
+        assertEquals(people.size(), ledger.participantCount());
+        assertEquals(people.size(), balances.size());
+        assertEquals(people, balances.keySet());
+        assertEquals((long) THREADS * perThread, ledger.expenseCount());
+    }
+
+    // Every thread meets a new person at the same moment, which is where duplicate ids showed up
+    @Test
+    void newPeopleGetDistinctBalances() throws Exception {
+        for (int round = 0; round < 300; round++) {
+            Ledger ledger = new Ledger();
+            CyclicBarrier start = new CyclicBarrier(THREADS);
+            int people = 200;
+            runConcurrently(THREADS, thread -> {
+                start.await();
+                for (int i = 0; i < people; i++) {
+                    record(ledger, "{\"payer\":\"t" + thread + "-" + i + "\",\"total\":1,\"participants\":[\"shared\"],"
+                            + "\"splitType\":\"equal\"}");
+                }
+            });
+
+            Map<String, Long> balances = ledger.balanceCents();
+            assertEquals(THREADS * people + 1, ledger.participantCount(), "round " + round);
+            assertEquals(THREADS * people + 1, balances.size(), "round " + round);
+            assertEquals(0, balances.values().stream().mapToLong(Long::longValue).sum(), "round " + round);
+            assertEquals(-THREADS * people * 100L, balances.get("shared"), "round " + round);
+        }
+    }
+
+    /**
+     * Walking the expenses a page at a time, continuing after the last id seen, the way
+     * cursors on /groups/{group}/expenses do. While writers keep adding, no expense may be
+     * skipped or repeated: ids have to become visible in order.
+     */
+    @Test
+    void cursorWalkSeesEveryExpenseOnceWhileWriting() throws Exception {
+        Ledger ledger = new Ledger();
+        int writers = THREADS - 2;
+        int perThread = 1000;
+        int total = writers * perThread;
+        List<List<Long>> walks = Collections.synchronizedList(new ArrayList<>());
+        runConcurrently(THREADS, thread -> {
+            if (thread < writers) {
+                for (int i = 0; i < perThread; i++) {
+                    String person = "p" + (thread + i) % 10;
+                    record(ledger, "{\"payer\":\"" + person + "\",\"total\":1.01,\"participants\":[\"" + person
+                            + "\",\"shared\"],\"splitType\":\"equal\"}");
+                }
+                return;
+            }
+            // One reader walks everything, the other only what "shared" takes part in, which is also everything
+            List<Long> seen = new ArrayList<>();
+            long after = 0;
+            while (seen.size() < total) {
+                Collection<App.Expense> tail = thread == writers ? ledger.expensesAfter(after)
+                        : ledger.expensesAfter("shared", after);
+                int page = 0;
+                for (App.Expense expense : tail) {
+                    if (page++ == 50) break;
+                    seen.add(expense.id);
+                    after = expense.id;
+                }
+            }
+            walks.add(seen);
+        });
+
+        assertEquals(2, walks.size());
+        for (List<Long> seen : walks) {
+            assertEquals(total, seen.size());
+            for (int i = 0; i < total; i++) {
+                assertEquals(i + 1, seen.get(i));
+            }
+        }
+    }
+
+    interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runConcurrently(int threads, Task task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    task.run(thread);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Parse, split and record one /addExpense body the way AddExpenseHandler does
+    private static void record(Ledger ledger, String json) throws Exception {
+        Map<String, Object> response = new HashMap<>();
+        App.Expense expense = App.AddExpenseHandler.readExpense(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), response);
+        assertNotNull(expense, () -> String.valueOf(response.get("error")));
+        ledger.record(expense);
+    }
+}
@@ -0,0 +1,86 @@
+package fairshare;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Settlement planning: every plan must leave everyone at exactly zero, and the exact
+ * solver must never need more transfers than greedy, and fewer where people form
+ * subgroups that settle among themselves.
+ */
+class SettlementsTest {
+    // {a, d} cancel out and so do {b, c, e}, for 1 + 2 transfers; greedy pairs e with d and needs 4
+    private static final Map<String, Long> SUBGROUPS = Map.of(
+            "a", 800L, "b", -200L, "c", -700L, "d", -800L, "e", 900L);
+
+    @Test
+    void exactFindsFewerTransfersThanGreedy() {
+        List<Settlements.Transfer> greedy = Settlements.compute(SUBGROUPS, "greedy", 16);
+        List<Settlements.Transfer> exact = Settlements.compute(SUBGROUPS, "exact", 16);
+        assertEquals(4, greedy.size());
+        assertEquals(3, exact.size());
+        assertSettles(SUBGROUPS, greedy);
+        assertSettles(SUBGROUPS, exact);
+    }
+
+    @Test
+    void autoUsesExactWithinTheLimitOnly() {
+        assertEquals(3, Settlements.compute(SUBGROUPS, "auto", 5).size());
+        assertEquals(4, Settlements.compute(SUBGROUPS, "auto", 4).size());
+        assertThrows(IllegalArgumentException.class, () -> Settlements.compute(SUBGROUPS, "exact", 4));
+    }
+
+    @Test
+    void peopleWithoutBalanceNeedNoTransfers() {
+        Map<String, Long> balances = new HashMap<>(SUBGROUPS);
+        balances.put("f", 0L);
+        assertEquals(3, Settlements.compute(balances, "exact", 5).size());
+        assertTrue(Settlements.compute(Map.of("a", 0L), "auto", 16).isEmpty());
+    }
+
+    @Test
+    void randomBalancesAlwaysSettle() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            Map<String, Long> balances = new HashMap<>();
+            int people = 2 + random.nextInt(10);
+            long sum = 0;
+            for (int i = 1; i < people; i++) {
+                long cents = random.nextInt(2001) - 1000;
+                balances.put("p" + i, cents);
+                sum += cents;
+            }
+            balances.put("p0", -sum);
+
+            List<Settlements.Transfer> greedy = Settlements.compute(balances, "greedy", 16);
+            List<Settlements.Transfer> exact = Settlements.compute(balances, "exact", 16);
+            assertSettles(balances, greedy);
+            assertSettles(balances, exact);
+            assertTrue(exact.size() <= greedy.size(), "round " + round);
+            assertTrue(greedy.size() <= Math.max(0, people - 1), "round " + round);
+        }
+    }
+
+    @Test
+    void limitIsClampedToWhatTheSolverAffords() {
+        assertEquals(16, Settlements.clampExactLimit(16));
+        assertEquals(Settlements.MAX_EXACT_PEOPLE, Settlements.clampExactLimit(40));
+        assertEquals(0, Settlements.clampExactLimit(-1));
+    }
+
+    // Apply the transfers and check that every balance ends at zero, with no transfer of nothing
+    private static void assertSettles(Map<String, Long> balances, List<Settlements.Transfer> transfers) {
+        Map<String, Long> remaining = new HashMap<>(balances);
+        for (Settlements.Transfer transfer : transfers) {
+            assertTrue(transfer.cents > 0, "transfer of " + transfer.cents);
+            remaining.merge(transfer.from, transfer.cents, Long::sum);
+            remaining.merge(transfer.to, -transfer.cents, Long::sum);
+        }
+        for (Map.Entry<String, Long> entry : remaining.entrySet()) {
+            assertEquals(0L, entry.getValue(), entry.getKey());
+        }
+    }
+}
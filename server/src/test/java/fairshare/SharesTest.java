@@ -0,0 +1,82 @@
+package fairshare;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Splitting a total into per-person cents: the shares must add up to the total to the
+ * cent for every split type, and leftover cents must land on the same people every time.
+ */
+class SharesTest {
+    @Test
+    void equalSplitGivesLeftoverCentsToEarlierParticipants() {
+        assertArrayEquals(new long[]{334, 333, 333}, shares(List.of("a", "b", "c"), "equal", Map.of(), 10.00).cents);
+        assertArrayEquals(new long[]{1, 1, 0}, shares(List.of("a", "b", "c"), "equal", Map.of(), 0.02).cents);
+        assertArrayEquals(new long[]{15, 15, 14, 14, 14, 14, 14}, shares(List.of("a", "b", "c", "d", "e", "f", "g"), "equal", Map.of(), 1.00).cents);
+    }
+
+    @Test
+    void awkwardPercentagesReconcile() {
+        App.Shares thirds = shares(List.of("a", "b", "c"), "percentage", Map.of("a", 33.3, "b", 33.3, "c", 33.4), 10.00);
+        assertArrayEquals(new long[]{333, 333, 334}, thirds.cents);
+
+        App.Shares cent = shares(List.of("a", "b", "c"), "percentage", Map.of("a", 33.33, "b", 33.33, "c", 33.34), 0.01);
+        assertArrayEquals(new long[]{0, 0, 1}, cent.cents);
+
+        App.Shares uneven = shares(List.of("a", "b", "c"), "percentage", Map.of("a", 12.5, "b", 17.5, "c", 70.0), 0.99);
+        assertEquals(99, uneven.totalCents());
+    }
+
+    @Test
+    void sharesReconcile() {
+        assertArrayEquals(new long[]{67, 33}, shares(List.of("a", "b"), "shares", Map.of("a", 2.0, "b", 1.0), 1.00).cents);
+        assertArrayEquals(new long[]{143, 143, 143, 286, 285},
+                shares(List.of("a", "b", "c", "d", "e"), "shares", Map.of("a", 1.0, "b", 1.0, "c", 1.0, "d", 2.0, "e", 2.0), 10.00).cents);
+    }
+
+    @Test
+    void peopleOnlyInTheDetailsComeAfterParticipants() {
+        App.Shares split = shares(List.of("a"), "shares", Map.of("b", 1.0, "a", 1.0), 0.03);
+        assertArrayEquals(new String[]{"a", "b"}, split.names);
+        assertArrayEquals(new long[]{2, 1}, split.cents);
+    }
+
+    @Test
+    void exactAmountsMustAddUp() {
+        App.Shares split = shares(List.of("a", "b"), "exact", Map.of("a", 3.33, "b", 6.67), 10.00);
+        assertArrayEquals(new long[]{333, 667}, split.cents);
+        assertThrows(IllegalArgumentException.class, () -> shares(List.of("a", "b"), "exact", Map.of("a", 3.33, "b", 6.66), 10.00));
+        assertThrows(IllegalArgumentException.class, () -> shares(List.of("a", "b"), "percentage", Map.of("a", 50.0, "b", 49.0), 10.00));
+        assertThrows(IllegalArgumentException.class, () -> shares(List.of("a", "b"), "shares", Map.of("a", 0.0, "b", 0.0), 10.00));
+    }
+
+    @Test
+    void randomSplitsAlwaysReconcileTheSameWay() {
+        Random random = new Random(7);
+        for (int round = 0; round < 2000; round++) {
+            long totalCents = random.nextInt(1_000_000);
+            double[] weights = new double[1 + random.nextInt(12)];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = random.nextInt(4) == 0 ? 1 : random.nextDouble() * 100;
+            }
+            long[] cents = App.AddExpenseHandler.apportion(totalCents, weights);
+            assertEquals(totalCents, Arrays.stream(cents).sum(), "round " + round);
+            assertArrayEquals(cents, App.AddExpenseHandler.apportion(totalCents, weights.clone()), "round " + round);
+
+            // Nobody is more than a cent away from their exact quota
+            double sum = Arrays.stream(weights).sum();
+            for (int i = 0; i < weights.length; i++) {
+                assertTrue(Math.abs(cents[i] - totalCents * weights[i] / sum) < 1, "round " + round);
+            }
+        }
+    }
+
+    private static App.Shares shares(List<String> participants, String splitType, Map<String, Double> splitDetails, double total) {
+        App.Shares shares = App.AddExpenseHandler.calculateShares(participants, splitType, splitDetails, total);
+        assertEquals(Math.round(total * 100), shares.totalCents());
+        return shares;
+    }
+}